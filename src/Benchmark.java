@@ -0,0 +1,419 @@
+/*
+ * Benchmark
+ * Alex Eidt
+ * End-to-end performance regression harness for the Seam Carvers.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+public class Benchmark {
+
+    // Image sizes in the corpus as width x height.
+    private static final int[][] SIZES = {{256, 192}, {640, 480}, {1280, 720}};
+    // Synthetic scenes in the corpus.
+    private static final String[] SCENES = {"gradient", "noise", "shapes"};
+    // Fraction of the image width removed in each case.
+    private static final int FRACTION = 4;
+    // Seed for every synthetic image so the corpus is identical between runs.
+    private static final long SEED = 0x4B617276L;
+    // Default allowed slowdown against the baseline in percent.
+    private static final double THRESHOLD = 10.0;
+    // Matches one "key": value pair in a line of benchmark output.
+    private static final Pattern FIELD = Pattern.compile("\"(\\w+)\": \"?([^,\"}]*)\"?");
+
+    /*
+     * Measurements of a single benchmark case.
+     */
+    private static class Result {
+        String name;
+        int width, height, seams;
+        long loadMs, writeMs, addMs, peakHeap, peakRss, gcMs;
+        double seamsPerSecond, p50, p99;
+        String checksum;
+        boolean restored;
+
+        /*
+         * Formats the result as a single line JSON object.
+         *
+         * @return          The JSON object.
+         */
+        String toJson() {
+            return String.format(
+                "{\"name\": \"%s\", \"width\": %d, \"height\": %d, \"seams\": %d, "
+                + "\"loadMs\": %d, \"seamsPerSecond\": %.2f, \"p50Ms\": %.3f, \"p99Ms\": %.3f, "
+                + "\"addMs\": %d, \"writeMs\": %d, \"peakHeapBytes\": %d, \"peakRssBytes\": %d, "
+                + "\"gcMs\": %d, \"checksum\": \"%s\", \"restored\": %b}",
+                this.name, this.width, this.height, this.seams,
+                this.loadMs, this.seamsPerSecond, this.p50, this.p99,
+                this.addMs, this.writeMs, this.peakHeap, this.peakRss,
+                this.gcMs, this.checksum, this.restored
+            );
+        }
+    }
+
+    /*
+     * Creates a deterministic synthetic image.
+     *
+     * @param scene     One of "gradient", "noise" or "shapes".
+     * @param width     The width of the image.
+     * @param height    The height of the image.
+     * @return          2D image array where each int represents the RGB pixel.
+     */
+    public static int[][] synthetic(String scene, int width, int height) {
+        int[][] image = new int[height][width];
+        Random random = new Random(SEED ^ scene.hashCode() ^ ((long) width << 32) ^ height);
+        switch (scene) {
+            case "gradient":
+                for (int h = 0; h < height; h++) {
+                    for (int w = 0; w < width; w++) {
+                        int r = w * 255 / width, g = h * 255 / height, b = (w + h) * 255 / (width + height);
+                        image[h][w] = 0xFF000000 | r << 16 | g << 8 | b;
+                    }
+                }
+                break;
+            case "noise":
+                for (int h = 0; h < height; h++) {
+                    for (int w = 0; w < width; w++) {
+                        image[h][w] = 0xFF000000 | random.nextInt(1 << 24);
+                    }
+                }
+                break;
+            case "shapes":
+                // Flat background with rectangles and circles of random colors.
+                for (int[] row : image) Arrays.fill(row, 0xFF6080A0);
+                for (int i = 0; i < 24; i++) {
+                    int color = 0xFF000000 | random.nextInt(1 << 24);
+                    int cx = random.nextInt(width), cy = random.nextInt(height);
+                    int size = 4 + random.nextInt(Utils.max(Utils.min(width, height) / 6, 1));
+                    boolean circle = random.nextBoolean();
+                    for (int h = Utils.max(cy - size, 0); h < Utils.min(cy + size, height); h++) {
+                        for (int w = Utils.max(cx - size, 0); w < Utils.min(cx + size, width); w++) {
+                            int dx = w - cx, dy = h - cy;
+                            if (!circle || dx * dx + dy * dy <= size * size) {
+                                image[h][w] = color;
+                            }
+                        }
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid scene: " + scene);
+        }
+        return image;
+    }
+
+    /*
+     * Runs one benchmark case through the public entry points: the image is written
+     * with Utils.writeImage, loaded with SeamCarverFactory.create, carved one seam at a
+     * time and then restored with a bulk add.
+     *
+     * @param scene         The synthetic scene to carve.
+     * @param width         The width of the image.
+     * @param height        The height of the image.
+     * @param type          The energy type to carve with.
+     * @param directory     Directory for the images written during the case.
+     * @return              The measurements of the case.
+     */
+    public static Result run(String scene, int width, int height, EnergyType type, File directory) {
+        Result result = new Result();
+        result.name = scene + "-" + width + "x" + height + "-" + type.name().toLowerCase();
+        result.width = width;
+        result.height = height;
+
+        int[][] image = synthetic(scene, width, height);
+        File input = new File(directory, result.name + ".png");
+        Utils.writeImage(Utils.flatten(image), width, height, false, input.getPath());
+
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+        long gc = gcTime();
+
+        long start = System.nanoTime();
+        SeamCarver carver = new SeamCarverFactory().create(input, false, type);
+        result.loadMs = (System.nanoTime() - start) / 1000000;
+
+        // Time each seam on its own to get the latency distribution.
+        int count = width / FRACTION;
+        long[] latencies = new long[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            long seam = System.nanoTime();
+            carver.remove(false, 0);
+            latencies[i] = System.nanoTime() - seam;
+            total += latencies[i];
+        }
+        result.seams = count;
+        result.seamsPerSecond = count * 1e9 / Math.max(total, 1);
+        Arrays.sort(latencies);
+        result.p50 = percentile(latencies, 0.50) / 1e6;
+        result.p99 = percentile(latencies, 0.99) / 1e6;
+        result.checksum = checksum(carver.getImage(), carver.getWidth() * carver.getHeight());
+
+        start = System.nanoTime();
+        Utils.writeImage(
+            carver.getImage(), carver.getWidth(), carver.getHeight(), false,
+            new File(directory, result.name + "-carved.png").getPath()
+        );
+        result.writeMs = (System.nanoTime() - start) / 1000000;
+
+        // Adding every seam back must reproduce the original image exactly.
+        start = System.nanoTime();
+        carver.add(count, false, 0);
+        result.addMs = (System.nanoTime() - start) / 1000000;
+        result.restored = Arrays.equals(
+            Arrays.copyOf(carver.getImage(), width * height),
+            Utils.flatten(image)
+        );
+
+        result.gcMs = gcTime() - gc;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) result.peakHeap += pool.getPeakUsage().getUsed();
+        }
+        result.peakRss = peakRss();
+        return result;
+    }
+
+    /*
+     * Compares the approximate seam search with the exact one on a synthetic image. Each
+     * seam of a quarter of the width is compared with the approximate seam from the same
+     * image before the exact one is removed. The same number of seams is then removed
+     * from fresh Seam Carvers with each search alone to time them.
+     *
+     * @param scene         The synthetic scene to carve.
+     * @param width         The width of the image.
+     * @param height        The height of the image.
+     * @param type          The energy type to carve with.
+     * @param beam          Number of partial seams the approximate search follows.
+     * @return              The measurements as a single line JSON object.
+     */
+    public static String approximate(String scene, int width, int height, EnergyType type, int beam) {
+        int[][] image = synthetic(scene, width, height);
+        SeamCarverFactory factory = new SeamCarverFactory();
+        int count = width / FRACTION;
+
+        SeamCarver carver = factory.create(image, false, type);
+        long approximateEnergy = 0, exactEnergy = 0;
+        double worst = 1;
+        int optimal = 0;
+        for (int i = 0; i < count; i++) {
+            long[] costs = carver.compareSeams(beam);
+            approximateEnergy += costs[0];
+            exactEnergy += costs[1];
+            if (costs[0] <= costs[1]) optimal++;
+            if (costs[1] > 0) worst = Math.max(worst, (double) costs[0] / costs[1]);
+            carver.remove(false, 0);
+        }
+
+        carver = factory.create(image, false, type);
+        long start = System.nanoTime();
+        carver.remove(count, false, 0);
+        long exact = System.nanoTime() - start;
+        carver = factory.create(image, false, type);
+        start = System.nanoTime();
+        carver.remove(count, false, 0, beam);
+        long approximate = System.nanoTime() - start;
+
+        return String.format(
+            "{\"name\": \"%s-%dx%d-%s\", \"beam\": %d, \"seams\": %d, "
+            + "\"exactMsPerSeam\": %.3f, \"approximateMsPerSeam\": %.3f, \"speedup\": %.2f, "
+            + "\"exactEnergy\": %.1f, \"approximateEnergy\": %.1f, \"energyRatio\": %s, "
+            + "\"worstRatio\": %.4f, \"optimalPercent\": %.1f}",
+            scene, width, height, type.name().toLowerCase(), beam, count,
+            exact / 1e6 / count, approximate / 1e6 / count, (double) exact / Math.max(approximate, 1),
+            (double) exactEnergy / count, (double) approximateEnergy / count,
+            // Seams through flat areas may have no energy at all, leaving no ratio.
+            exactEnergy > 0 ? String.format("%.4f", (double) approximateEnergy / exactEnergy) : "null",
+            worst, optimal * 100.0 / count
+        );
+    }
+
+    // Returns the value at the given quantile of the sorted array.
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Utils.max(Utils.min(index, sorted.length - 1), 0)];
+    }
+
+    // Returns the CRC32 of the first "size" pixels of the image as hex.
+    private static String checksum(int[] image, int size) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < size; i++) {
+            int pixel = image[i];
+            crc.update(pixel >>> 24);
+            crc.update(pixel >>> 16);
+            crc.update(pixel >>> 8);
+            crc.update(pixel);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    // Returns the total time spent in garbage collection so far in milliseconds.
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+        return total;
+    }
+
+    // Returns the peak resident set size of the process in bytes, or -1 if unknown.
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(new File("/proc/self/status").toPath())) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {}
+        return -1;
+    }
+
+    /*
+     * Reads the results of a previous run, keyed by case name.
+     *
+     * @param file      File written by a previous run with "--out".
+     * @return          Map from case name to its fields.
+     */
+    private static Map<String, Map<String, String>> readBaseline(File file) throws IOException {
+        Map<String, Map<String, String>> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            Map<String, String> fields = new HashMap<>();
+            Matcher matcher = FIELD.matcher(line);
+            while (matcher.find()) fields.put(matcher.group(1), matcher.group(2).trim());
+            if (fields.containsKey("name")) baseline.put(fields.get("name"), fields);
+        }
+        return baseline;
+    }
+
+    /*
+     * Compares a result against its baseline.
+     *
+     * @param result        The result of this run.
+     * @param base          The baseline fields of the same case, or null if there are none.
+     * @param threshold     Allowed slowdown in percent.
+     * @return              A description of every regression found. Empty if there are none.
+     */
+    private static List<String> compare(Result result, Map<String, String> base, double threshold) {
+        List<String> failures = new ArrayList<>();
+        if (!result.restored) {
+            failures.add(result.name + ": adding every seam back did not restore the image");
+        }
+        if (base == null) return failures;
+        if (!result.checksum.equals(base.get("checksum"))) {
+            failures.add(result.name + ": carved image changed (checksum " + result.checksum
+                    + ", golden " + base.get("checksum") + ")");
+        }
+        double limit = 1 + threshold / 100;
+        double speed = Double.parseDouble(base.get("seamsPerSecond"));
+        if (result.seamsPerSecond * limit < speed) {
+            failures.add(String.format("%s: %.2f seams/sec, baseline %.2f", result.name, result.seamsPerSecond, speed));
+        }
+        double p99 = Double.parseDouble(base.get("p99Ms"));
+        if (result.p99 > p99 * limit) {
+            failures.add(String.format("%s: p99 %.3f ms, baseline %.3f ms", result.name, result.p99, p99));
+        }
+        return failures;
+    }
+
+    /*
+     * Runs the benchmark corpus and prints the results as JSON.
+     * Usage: java Benchmark [--out <file>] [--baseline <file>] [--threshold <percent>] [--quick] [--approximate <beam,...>]
+     * Exits with status 1 if any case regresses against the baseline by more than the
+     * threshold, changes the carved image, or fails to restore the original image.
+     * With "--approximate", compares the approximate seam search with the given beams
+     * against the exact one instead.
+     */
+    public static void main(String[] args) throws IOException {
+        File out = null, baselineFile = null;
+        double threshold = THRESHOLD;
+        boolean quick = false;
+        int[] beams = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--out": out = new File(args[++i]); break;
+                case "--baseline": baselineFile = new File(args[++i]); break;
+                case "--threshold": threshold = Double.parseDouble(args[++i]); break;
+                case "--quick": quick = true; break;
+                case "--approximate":
+                    String[] values = args[++i].split(",");
+                    beams = new int[values.length];
+                    for (int b = 0; b < values.length; b++) beams[b] = Integer.parseInt(values[b]);
+                    break;
+                default:
+                    System.out.println("Usage: java Benchmark [--out <file>] [--baseline <file>] [--threshold <percent>] [--quick] [--approximate <beam,...>]");
+                    return;
+            }
+        }
+        if (beams != null) {
+            // Report the quality and speed of the approximate search instead.
+            approximate(SCENES[0], SIZES[0][0], SIZES[0][1], EnergyType.BACKWARD, beams[0]);
+            int sizes = quick ? 1 : SIZES.length;
+            for (int s = 0; s < sizes; s++) {
+                for (String scene : SCENES) {
+                    for (EnergyType type : EnergyType.values()) {
+                        for (int beam : beams) {
+                            System.out.println(approximate(scene, SIZES[s][0], SIZES[s][1], type, beam));
+                        }
+                    }
+                }
+            }
+            return;
+        }
+        Map<String, Map<String, String>> baseline = baselineFile == null
+                ? new HashMap<>()
+                : readBaseline(baselineFile);
+
+        File directory = Files.createTempDirectory("karve-benchmark").toFile();
+        // Warm up the JIT so the first case is not measured cold.
+        run(SCENES[0], SIZES[0][0], SIZES[0][1], EnergyType.BACKWARD, directory);
+
+        List<Result> results = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+        int sizes = quick ? 1 : SIZES.length;
+        for (int s = 0; s < sizes; s++) {
+            for (String scene : SCENES) {
+                for (EnergyType type : EnergyType.values()) {
+                    Result result = run(scene, SIZES[s][0], SIZES[s][1], type, directory);
+                    results.add(result);
+                    failures.addAll(compare(result, baseline.get(result.name), threshold));
+                }
+            }
+        }
+        for (File file : directory.listFiles()) file.delete();
+        directory.delete();
+
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            json.append("  ").append(results.get(i).toJson());
+            json.append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("]\n");
+        System.out.print(json);
+        if (out != null) {
+            Files.write(out.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        if (!failures.isEmpty()) {
+            for (String failure : failures) System.err.println("REGRESSION " + failure);
+            System.exit(1);
+        }
+    }
+}
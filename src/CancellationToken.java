@@ -0,0 +1,60 @@
+/*
+ * CancellationToken
+ * Alex Eidt
+ */
+
+/*
+ * Lets long running carves be cancelled cooperatively. A carve checks its token
+ * between seams and while building the energy map, and stops at the next point
+ * where the Seam Carver is consistent. A token is cancelled when "cancel" is
+ * called, when its deadline passes or when the carving thread is interrupted.
+ */
+public class CancellationToken {
+    // Token that is never cancelled.
+    public static final CancellationToken NONE = new CancellationToken(0, false);
+
+    // Deadline as given by System.nanoTime(), if "timed" is set.
+    private final long deadline;
+    private final boolean timed;
+    // If false, the token can never be cancelled.
+    private final boolean cancellable;
+    private volatile boolean cancelled;
+
+    // Creates a token that is cancelled only by "cancel" or an interrupt.
+    public CancellationToken() {
+        this(0, true);
+    }
+
+    private CancellationToken(long deadline, boolean timed, boolean cancellable) {
+        this.deadline = deadline;
+        this.timed = timed;
+        this.cancellable = cancellable;
+    }
+
+    private CancellationToken(long deadline, boolean cancellable) {
+        this(deadline, false, cancellable);
+    }
+
+    /*
+     * Creates a token that is cancelled automatically once the timeout has passed.
+     *
+     * @param timeout   Timeout in milliseconds.
+     * @return          The token.
+     */
+    public static CancellationToken withTimeout(long timeout) {
+        return new CancellationToken(System.nanoTime() + timeout * 1000000L, true, true);
+    }
+
+    // Cancels the token.
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    // Returns true if the task holding this token should stop.
+    public boolean isCancelled() {
+        if (!this.cancellable) return false;
+        return this.cancelled
+                || (this.timed && System.nanoTime() - this.deadline > 0)
+                || Thread.currentThread().isInterrupted();
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * CarverSession
+ * Alex Eidt
+ * Serialises all changes to a pair of Seam Carvers through a single writer
+ * thread and publishes immutable frames that any thread can read without locks.
+ */
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class CarverSession implements Closeable {
+    // Number of changes a frame remembers for "changedSince".
+    private static final int HISTORY = 32;
+    // Number of retired frames kept around so their pixel buffers can be reused.
+    private static final int SPARES = 2;
+
+    /*
+     * A snapshot of the image of the current Seam Carver. The pixels of a frame never
+     * change while it is held. Frames are read with "acquire" and handed back with
+     * "release" so their buffers can be reused for later frames.
+     */
+    public static class Frame {
+        // Image of the Seam Carver. Only the first width * height ints are used.
+        public final int[] pixels;
+        // Dimensions of the image.
+        public final int width, height;
+        // If true, the frame is from the horizontal Seam Carver.
+        public final boolean horizontal;
+        // Incremented for every published frame.
+        public final long version;
+        // Versions of this frame and the frames before it, newest first.
+        private final long[] versions;
+        // First and last (exclusive) column changed by each frame in "versions".
+        private final int[] starts, ends;
+        // Number of readers holding the frame. -1 once its buffer is reused.
+        private final AtomicInteger readers;
+
+        private Frame(int[] pixels, int width, int height, boolean horizontal, Frame previous, int start, int end) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.horizontal = horizontal;
+            this.version = previous == null ? 1 : previous.version + 1;
+            this.readers = new AtomicInteger();
+
+            // Remember the changes of the last few frames for readers that skipped frames.
+            int kept = previous == null ? 0 : Utils.min(previous.versions.length, HISTORY - 1);
+            this.versions = new long[kept + 1];
+            this.starts = new int[kept + 1];
+            this.ends = new int[kept + 1];
+            this.versions[0] = this.version;
+            this.starts[0] = start;
+            this.ends[0] = end;
+            if (kept > 0) {
+                System.arraycopy(previous.versions, 0, this.versions, 1, kept);
+                System.arraycopy(previous.starts, 0, this.starts, 1, kept);
+                System.arraycopy(previous.ends, 0, this.ends, 1, kept);
+            }
+        }
+
+        /*
+         * Finds the columns that changed between the given version and this frame.
+         *
+         * @param version   Version of an earlier frame.
+         * @return          The first and last (exclusive) changed column. Covers the
+         *                  entire image if the version is too old to tell.
+         */
+        public int[] changedSince(long version) {
+            int start = Integer.MAX_VALUE, end = 0;
+            for (int i = 0; i < this.versions.length; i++) {
+                if (this.versions[i] <= version) return new int[]{start, end};
+                start = Utils.min(start, this.starts[i]);
+                end = Utils.max(end, this.ends[i]);
+            }
+            return new int[]{0, Integer.MAX_VALUE};
+        }
+
+        // Hands the frame back to the session.
+        public void release() {
+            this.readers.decrementAndGet();
+        }
+    }
+
+    // The vertical and horizontal Seam Carvers. Only used on the writer thread.
+    private final SeamCarver[] carvers;
+    // Runs every change to the Seam Carvers in order.
+    private final ExecutorService writer;
+    // The most recently published frame.
+    private volatile Frame frame;
+    // Called on the writer thread whenever a new frame is published.
+    private volatile Runnable listener;
+    // Frames that were replaced. Their buffers are reused once no reader holds them.
+    private final List<Frame> retired;
+    // The index of the current Seam Carver in "this.carvers".
+    private int idx;
+    // If false, no frames are published while carving.
+    private boolean publishing;
+    // Dimensions of the current Seam Carver after the last command.
+    private volatile int width, height;
+    // Number of commands that are queued or running.
+    private final AtomicInteger pending;
+    // Stops finding the next seam ahead of time as soon as a command is queued.
+    private volatile CancellationToken speculation;
+    // If true, the next seam is found ahead of time whenever the session is idle.
+    private volatile boolean speculative;
+
+    /*
+     * Creates a session for the given vertical and horizontal Seam Carvers. Neither
+     * may be used outside the session afterwards.
+     *
+     * @param vertical      The vertical Seam Carver.
+     * @param horizontal    The horizontal Seam Carver.
+     */
+    public CarverSession(SeamCarver vertical, SeamCarver horizontal) {
+        this.carvers = new SeamCarver[]{vertical, horizontal};
+        this.retired = new ArrayList<>();
+        this.publishing = true;
+        this.pending = new AtomicInteger();
+        this.speculation = new CancellationToken();
+        this.speculative = true;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Karve session");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.resized();
+        this.publish(0, Integer.MAX_VALUE);
+    }
+
+    // Returns the width of the current Seam Carver after the last finished command.
+    public int getWidth() {
+        return this.width;
+    }
+
+    // Returns the height of the current Seam Carver after the last finished command.
+    public int getHeight() {
+        return this.height;
+    }
+
+    /*
+     * Returns the most recently published frame. The caller must release it.
+     *
+     * @return          The current frame.
+     */
+    public Frame acquire() {
+        while (true) {
+            Frame frame = this.frame;
+            int readers = frame.readers.get();
+            // A negative count means the buffer was reused and a newer frame is published.
+            if (readers >= 0 && frame.readers.compareAndSet(readers, readers + 1)) {
+                return frame;
+            }
+        }
+    }
+
+    /*
+     * @param listener  Called on the writer thread after every published frame.
+     */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /*
+     * Removes the lowest energy seam from the current Seam Carver.
+     *
+     * @param highlight If true, highlight the removed seam.
+     * @param color     The color of the highlighted seam.
+     * @return          True if a seam was removed.
+     */
+    public Future<Boolean> remove(boolean highlight, int color) {
+        return this.submit(true, () -> {
+            boolean removed = this.carvers[this.idx].remove(highlight, color);
+            this.resized();
+            if (removed && this.publishing) this.publish(Integer.MAX_VALUE, 0);
+            return removed;
+        });
+    }
+
+    /*
+     * Adds the most recently removed seam back to the current Seam Carver.
+     *
+     * @param highlight If true, highlight the added seam.
+     * @param color     The color of the highlighted seam.
+     * @return          True if a seam was added.
+     */
+    public Future<Boolean> add(boolean highlight, int color) {
+        // Seams are usually added several in a row, so the next seam is not looked for.
+        return this.submit(false, () -> {
+            boolean added = this.carvers[this.idx].add(highlight, color);
+            this.resized();
+            if (added && this.publishing) this.publish(Integer.MAX_VALUE, 0);
+            return added;
+        });
+    }
+
+    /*
+     * Sets the mask of rectangles of the current Seam Carver and colors them in.
+     *
+     * @param rects     The rectangles as x, y, width and height, one after the other.
+     * @param mask      One of SeamCarver.MASK_NONE, MASK_REMOVE or MASK_PROTECT.
+     * @param color     The color to paint the rectangles with.
+     */
+    public Future<?> paint(int[] rects, int mask, int color) {
+        return this.submit(true, () -> {
+            SeamCarver carver = this.carvers[this.idx];
+            int width = carver.getWidth();
+            int start = Integer.MAX_VALUE, end = 0;
+            for (int i = 0; i + 3 < rects.length; i += 4) {
+                int x0 = Utils.max(rects[i], 0), x1 = Utils.min(rects[i] + rects[i + 2], width);
+                int y0 = Utils.max(rects[i + 1], 0), y1 = Utils.min(rects[i + 1] + rects[i + 3], carver.getHeight());
+                if (x1 <= x0 || y1 <= y0) continue;
+                carver.paintMask(x0, y0, x1 - x0, y1 - y0, mask, color);
+                start = Utils.min(start, x0);
+                end = Utils.max(end, x1);
+            }
+            if (this.publishing) this.publish(start, end);
+            return null;
+        });
+    }
+
+    /*
+     * Switches between the vertical and horizontal Seam Carver.
+     *
+     * @param horizontal    If true, carve horizontal seams.
+     */
+    public Future<?> setHorizontal(boolean horizontal) {
+        return this.submit(true, () -> {
+            this.idx = horizontal ? 1 : 0;
+            this.resized();
+            this.publish(0, Integer.MAX_VALUE);
+            return null;
+        });
+    }
+
+    /*
+     * Turns publishing frames on or off. Carving is faster when frames are not published.
+     *
+     * @param update    If true, publish a frame after every change.
+     * @param highlight If true, highlight the last seam.
+     * @param color     The color of the highlighted seam.
+     */
+    public Future<?> setUpdate(boolean update, boolean highlight, int color) {
+        return this.submit(true, () -> {
+            SeamCarver carver = this.carvers[this.idx];
+            carver.updateImage(highlight, color);
+            carver.setUpdate(update);
+            this.publishing = update;
+            if (update) this.publish(0, Integer.MAX_VALUE);
+            return null;
+        });
+    }
+
+    /*
+     * Shows or hides the highlight of the last seam.
+     *
+     * @param highlight If true, highlight the last seam.
+     * @param color     The color of the highlighted seam.
+     */
+    public Future<?> highlight(boolean highlight, int color) {
+        return this.submit(true, () -> {
+            this.carvers[this.idx].updateImage(highlight, color);
+            if (this.publishing) this.publish(Integer.MAX_VALUE, 0);
+            return null;
+        });
+    }
+
+    /*
+     * Turns finding the next seam ahead of time on or off. While on, the session uses
+     * the time between commands to build the energy map and find the next seam, so
+     * that a single "remove" only has to take the seam out of the image. Painting,
+     * adding seams and anything else that changes the energy map discards the seam.
+     *
+     * @param speculative   If true, find the next seam while idle. On by default.
+     */
+    public void setSpeculative(boolean speculative) {
+        this.speculative = speculative;
+    }
+
+    /*
+     * Runs a function on the current Seam Carver on the writer thread. The function
+     * must not change the image, otherwise published frames fall out of date.
+     *
+     * @param function  The function to run.
+     * @return          The result of the function.
+     */
+    public <T> Future<T> call(Function<SeamCarver, T> function) {
+        return this.submit(true, () -> function.apply(this.carvers[this.idx]));
+    }
+
+    // Stops the writer thread. Commands that have not started are discarded.
+    @Override
+    public void close() {
+        this.speculation.cancel();
+        this.writer.shutdownNow();
+    }
+
+    /*
+     * Stops the session once every queued command has run and hands the Seam Carvers
+     * back, so they can be used outside the session again.
+     *
+     * @return          The vertical and horizontal Seam Carvers.
+     * @throws          InterruptedException if interrupted while waiting for the commands.
+     */
+    public SeamCarver[] detach() throws InterruptedException {
+        this.speculation.cancel();
+        this.writer.shutdown();
+        while (!this.writer.awaitTermination(1, TimeUnit.MINUTES));
+        return this.carvers.clone();
+    }
+
+    // Records the dimensions of the current Seam Carver.
+    private void resized() {
+        this.width = this.carvers[this.idx].getWidth();
+        this.height = this.carvers[this.idx].getHeight();
+    }
+
+    /*
+     * Queues a command on the writer thread and stops finding the next seam ahead of time.
+     *
+     * @param speculate If true, find the next seam once the command is done and no
+     *                  other command is waiting.
+     * @param command   The command to run.
+     * @return          The result of the command.
+     */
+    private <T> Future<T> submit(boolean speculate, Callable<T> command) {
+        this.pending.incrementAndGet();
+        this.speculation.cancel();
+        return this.writer.submit(() -> {
+            try {
+                return command.call();
+            } finally {
+                // The search runs as its own task, so the caller does not wait for it.
+                if (this.pending.decrementAndGet() == 0 && speculate && !this.writer.isShutdown()) {
+                    try {
+                        this.writer.execute(this::speculate);
+                    } catch (RejectedExecutionException ignored) {}
+                }
+            }
+        });
+    }
+
+    // Finds the next seam of the current Seam Carver until a command is queued. Runs on the writer thread.
+    private void speculate() {
+        if (!this.speculative || this.writer.isShutdown()) return;
+        CancellationToken token = new CancellationToken();
+        this.speculation = token;
+        // A command queued before the token was published could not cancel it.
+        if (this.pending.get() > 0) return;
+        this.carvers[this.idx].prepare(token);
+    }
+
+    /*
+     * Copies the image of the current Seam Carver into a new frame and publishes it.
+     * Runs on the writer thread, except for the first frame.
+     *
+     * @param start     First column changed outside of the Seam Carver's own tracking.
+     * @param end       End of the changed columns, exclusive.
+     */
+    private void publish(int start, int end) {
+        SeamCarver carver = this.carvers[this.idx];
+        int[] image = carver.getImage();
+        int[] region = carver.getDirtyRegion();
+        if (region[2] > 0) {
+            start = Utils.min(start, region[0]);
+            end = Utils.max(end, region[0] + region[2]);
+        }
+        int width = carver.getWidth(), height = carver.getHeight();
+        int[] pixels = this.buffer(width * height);
+        System.arraycopy(image, 0, pixels, 0, width * height);
+
+        Frame previous = this.frame;
+        this.frame = new Frame(pixels, width, height, this.idx == 1, previous, start, end);
+        if (previous != null) {
+            this.retired.add(previous);
+            if (this.retired.size() > SPARES) this.retired.remove(0);
+        }
+        Runnable listener = this.listener;
+        if (listener != null) listener.run();
+    }
+
+    /*
+     * Returns a buffer of at least "size" ints, reusing the buffer of a retired frame
+     * that no reader holds if there is one.
+     *
+     * @param size      The number of ints needed.
+     * @return          The buffer.
+     */
+    private int[] buffer(int size) {
+        for (Iterator<Frame> iterator = this.retired.iterator(); iterator.hasNext();) {
+            Frame frame = iterator.next();
+            if (frame.readers.compareAndSet(0, -1)) {
+                iterator.remove();
+                if (frame.pixels.length >= size) return frame.pixels;
+            }
+        }
+        return new int[size];
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Checkpoint
+ * Alex Eidt
+ * Saves the full state of a Seam Carver to a single file and resumes from it.
+ * The image, energy, energy map, mask and every removed seam are stored as plain
+ * arrays of primitives, so resuming does not recompute the energy or the energy map
+ * and removed seams can still be added back.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * File layout. All values are big endian ints unless noted otherwise.
+ *
+ *   Header     MAGIC, VERSION, type, width, height, capacity, flags, masked,
+ *              number of energy rows, number of removed seams.
+ *   Energy     Length of every energy row.
+ *   Image      "height" rows of "width" pixels.
+ *   Energy     Every energy row.
+ *   Map        "height" rows of "width" values. Only present if the map is not stale.
+ *   Mask       "height" rows of "width" bytes.
+ *   Window     Start and end column of every row. Only present if there is a window.
+ *   Seams      For every removed seam, oldest first: the path, the pixel values and
+ *              the energy values ("height" ints each) followed by "height" mask bytes.
+ */
+public class Checkpoint {
+    // Magic number at the start of every checkpoint ("KCHK").
+    public static final int MAGIC = 0x4B43484B;
+    // Version of the file layout. Files of other versions are rejected.
+    public static final int VERSION = 1;
+    // Number of ints in the header.
+    private static final int HEADER = 10;
+    // Flags stored in the header.
+    private static final int STALE = 1, UPDATE = 2, WINDOW = 4;
+    // Size of the write buffer and the minimum size of each mapped region when reading.
+    private static final int BUFFER = 1 << 20;
+    private static final int REGION = 1 << 26;
+
+    // Header values of a checkpoint being restored.
+    final EnergyType type;
+    final int width, height, capacity;
+    final boolean update;
+    private final int flags, masked, rows, count;
+    // The file being restored and the currently mapped region of it.
+    private final FileChannel channel;
+    private MappedByteBuffer region;
+    // Position of "region" in the file.
+    private long offset;
+
+    private Checkpoint(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.map(0, HEADER * 4);
+        if (this.region.getInt() != MAGIC) throw new IOException("Not a checkpoint");
+        int version = this.region.getInt();
+        if (version != VERSION) throw new IOException("Unsupported checkpoint version " + version);
+        this.type = EnergyType.values()[this.region.getInt()];
+        this.width = this.region.getInt();
+        this.height = this.region.getInt();
+        this.capacity = this.region.getInt();
+        this.flags = this.region.getInt();
+        this.masked = this.region.getInt();
+        this.rows = this.region.getInt();
+        this.count = this.region.getInt();
+        this.update = (this.flags & UPDATE) != 0;
+    }
+
+    /*
+     * Saves the state of a Seam Carver. The file is written next to its destination
+     * first and then moved in place, so an existing checkpoint is never left half written.
+     *
+     * @param carver    The Seam Carver to save.
+     * @param file      The checkpoint file.
+     * @throws          IOException if the file could not be written.
+     */
+    public static void save(SeamCarverBase carver, File file) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        int width = carver.width, height = carver.height;
+        int capacity = Utils.max(width, Utils.max(carver.map[0].length, carver.mask[0].length));
+        int flags = (carver.stale ? STALE : 0)
+                | (carver.update ? UPDATE : 0)
+                | (carver.windowStart != null ? WINDOW : 0);
+        EnergyType type = carver instanceof SeamCarverForward ? EnergyType.FORWARD : EnergyType.BACKWARD;
+
+        try (FileChannel channel = FileChannel.open(
+                temp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        )) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(type.ordinal())
+                    .putInt(width).putInt(height).putInt(capacity)
+                    .putInt(flags).putInt(carver.masked)
+                    .putInt(carver.energy.size()).putInt(carver.seams.size());
+            for (List<Integer> row : carver.energy) {
+                buffer = put(channel, buffer, row.size());
+            }
+            for (List<Integer> row : carver.image) {
+                buffer = put(channel, buffer, row);
+            }
+            for (List<Integer> row : carver.energy) {
+                buffer = put(channel, buffer, row);
+            }
+            if (!carver.stale) {
+                for (int[] row : carver.map) {
+                    buffer = put(channel, buffer, row, width);
+                }
+            }
+            for (byte[] row : carver.mask) {
+                buffer = flush(channel, buffer, width);
+                buffer.put(row, 0, width);
+            }
+            if (carver.windowStart != null) {
+                buffer = put(channel, buffer, carver.windowStart, height);
+                buffer = put(channel, buffer, carver.windowEnd, height);
+            }
+            for (int i = 0; i < carver.seams.size(); i++) {
+                buffer = put(channel, buffer, carver.seams.get(i), height);
+                buffer = put(channel, buffer, carver.values.get(i), height);
+                buffer = put(channel, buffer, carver.energyValues.get(i), height);
+                buffer = flush(channel, buffer, height);
+                buffer.put(carver.maskValues.get(i), 0, height);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Resumes a Seam Carver from a checkpoint. The file is memory mapped and read in
+     * large regions, nothing about the image is recomputed.
+     *
+     * @param file      The checkpoint file.
+     * @return          The Seam Carver in the state it was saved in.
+     * @throws          IOException if the file is not a valid checkpoint.
+     */
+    public static SeamCarver load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Checkpoint checkpoint = new Checkpoint(channel);
+            switch (checkpoint.type) {
+                case FORWARD:
+                    return new SeamCarverForward(checkpoint);
+                default:
+                    return new SeamCarverBackward(checkpoint);
+            }
+        }
+    }
+
+    /*
+     * Fills in the state of a Seam Carver whose buffers were allocated from the header.
+     * Called by the SeamCarverBase constructor.
+     *
+     * @param carver    The Seam Carver to restore.
+     * @throws          IOException if the file is cut short.
+     */
+    void restore(SeamCarverBase carver) throws IOException {
+        int width = this.width, height = this.height;
+        int[] lengths = new int[this.rows];
+        this.ints(lengths, this.rows);
+
+        int[][] pixels = new int[height][width];
+        for (int[] row : pixels) this.ints(row, width);
+        int[][] energy = new int[this.rows][];
+        for (int h = 0; h < this.rows; h++) {
+            energy[h] = new int[lengths[h]];
+            this.ints(energy[h], lengths[h]);
+        }
+        carver.image = lists(pixels);
+        carver.energy = lists(energy);
+
+        carver.stale = (this.flags & STALE) != 0;
+        if (!carver.stale) {
+            for (int[] row : carver.map) this.ints(row, width);
+        }
+        for (byte[] row : carver.mask) this.bytes(row, width);
+        carver.masked = this.masked;
+        if ((this.flags & WINDOW) != 0) {
+            carver.windowStart = new int[height];
+            carver.windowEnd = new int[height];
+            this.ints(carver.windowStart, height);
+            this.ints(carver.windowEnd, height);
+        }
+        for (int i = 0; i < this.count; i++) {
+            int[] path = new int[height], values = new int[height], energyValues = new int[height];
+            byte[] maskValues = new byte[height];
+            this.ints(path, height);
+            this.ints(values, height);
+            this.ints(energyValues, height);
+            this.bytes(maskValues, height);
+            carver.seams.push(path);
+            carver.values.push(values);
+            carver.energyValues.push(energyValues);
+            carver.maskValues.push(maskValues);
+        }
+    }
+
+    // Reads "length" ints from the file into "array".
+    private void ints(int[] array, int length) throws IOException {
+        this.ensure((long) length * 4);
+        this.region.asIntBuffer().get(array, 0, length);
+        this.region.position(this.region.position() + length * 4);
+    }
+
+    // Reads "length" bytes from the file into "array".
+    private void bytes(byte[] array, int length) throws IOException {
+        this.ensure(length);
+        this.region.get(array, 0, length);
+    }
+
+    // Maps the next region of the file if fewer than "bytes" bytes are left in the current one.
+    private void ensure(long bytes) throws IOException {
+        if (this.region.remaining() < bytes) {
+            this.map(this.offset + this.region.position(), bytes);
+        }
+    }
+
+    // Maps at least "bytes" bytes of the file starting at "position".
+    private void map(long position, long bytes) throws IOException {
+        long size = Math.min(Math.max(bytes, REGION), this.channel.size() - position);
+        if (size < bytes) throw new IOException("Checkpoint is cut short");
+        this.region = this.channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        this.offset = position;
+    }
+
+    // Converts the rows of a 2D array into the lists the Seam Carver works on.
+    private static List<List<Integer>> lists(int[][] array) {
+        List<List<Integer>> result = new ArrayList<>(array.length);
+        for (int[] row : array) {
+            result.add(new ArrayList<>(row.length));
+        }
+        Utils.parallel((cpu, cpus) -> {
+            for (int h = cpu; h < array.length; h += cpus) {
+                List<Integer> row = result.get(h);
+                for (int value : array[h]) row.add(value);
+            }
+        });
+        return result;
+    }
+
+    // Writes the buffer to the channel if fewer than "bytes" bytes of space are left.
+    private static ByteBuffer flush(FileChannel channel, ByteBuffer buffer, long bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+            if (buffer.capacity() < bytes) buffer = ByteBuffer.allocateDirect((int) bytes);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer put(FileChannel channel, ByteBuffer buffer, int value) throws IOException {
+        return flush(channel, buffer, 4).putInt(value);
+    }
+
+    private static ByteBuffer put(FileChannel channel, ByteBuffer buffer, int[] array, int length) throws IOException {
+        buffer = flush(channel, buffer, (long) length * 4);
+        buffer.asIntBuffer().put(array, 0, length);
+        buffer.position(buffer.position() + length * 4);
+        return buffer;
+    }
+
+    private static ByteBuffer put(FileChannel channel, ByteBuffer buffer, List<Integer> row) throws IOException {
+        buffer = flush(channel, buffer, (long) row.size() * 4);
+        for (int value : row) buffer.putInt(value);
+        return buffer;
+    }
+}
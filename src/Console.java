@@ -2,15 +2,24 @@
  * Console
  * Alex Eidt
  * Runs the Seam Carver from the console. For those interested in carving x number
- * of seams from an image without the user interface.
+ * of seams from an image without the user interface. With "--stream", images are
+ * read from stdin and the carved images written to stdout without any prompts.
  */
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Locale;
 import java.util.Scanner;
 
 public class Console {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--stream")) {
+            stream(args);
+            return;
+        }
         System.out.println("Welcome to Karve!\n");
         Scanner console = new Scanner(System.in);
         System.out.println("Enter Image File Name: ");
@@ -36,23 +45,141 @@ public class Console {
             int b = Integer.parseInt(colors[2]) & 0xFF;
             highlightColor = (r << 16) | (g << 8) | b;
         }
-        System.out.println("Number of Seams to remove?: ");
-        int seams = console.nextInt();
+        boolean useMask = getUserData(console, "Use a mask image? (y/n): ", "ny") == 'y';
+        File mask = null;
+        if (useMask) {
+            System.out.println("Enter Mask File Name (red removes, green protects): ");
+            mask = new File(console.next());
+            while (!mask.exists() || !mask.isFile()) {
+                System.out.println(mask.getName() + " file was not found. Enter File Name again: ");
+                mask = new File(console.next());
+            }
+        }
+        boolean erase = useMask && getUserData(console, "Erase the masked object? (y/n): ", "ny") == 'y';
 
-        SeamCarverFactory factory = new SeamCarverFactory();
-        SeamCarver carver = factory.create(filename, horizontal, type);
+        char mode = erase ? 'r' : getUserData(console, "Remove (r), Insert (i) or carve to Multiple sizes (m)?: ", "rim");
+        boolean insert = mode == 'i';
+        boolean multiple = mode == 'm';
+        String targets = null;
+        if (multiple) {
+            System.out.println("Enter target sizes separated by commas (e.g. 90%,75%,600): ");
+            targets = console.next();
+        }
+        int seams = 0;
+        if (!erase && !multiple) {
+            System.out.println("Number of Seams to " + (insert ? "insert" : "remove") + "?: ");
+            seams = console.nextInt();
+        }
+
+        int strips = 1;
+        if (!useMask && !insert && !multiple) {
+            System.out.println("Number of parallel strips? (1 for exact carving): ");
+            strips = console.nextInt();
+        }
 
         System.out.println("Carving...");
-        int numCarved = carver.remove(seams, showSeams, highlightColor);
-        System.out.println(numCarved + " seams carved from " + filename + ".");
+        int[] image;
+        int width, height;
+        if (strips > 1) {
+            int[][] carved = StripCarver.carve(file, seams, strips, horizontal, type);
+            image = Utils.flatten(carved);
+            width = carved[0].length;
+            height = carved.length;
+            System.out.println(filename + " carved to " + width + " x " + height + " in " + strips + " strips.");
+        } else {
+            SeamCarverFactory factory = new SeamCarverFactory();
+            SeamCarver carver = useMask
+                    ? factory.create(file, mask, horizontal, type)
+                    : factory.create(filename, horizontal, type);
+
+            if (multiple) {
+                System.out.println("Output file prefix: ");
+                String prefix = console.next();
+                int[] sizes = MultiTargetCarver.parseTargets(targets, carver.getWidth());
+                String[] outputs = new String[sizes.length];
+                for (int i = 0; i < sizes.length; i++) {
+                    outputs[i] = prefix + "_" + sizes[i] + ".png";
+                }
+                MultiTargetCarver.carve(carver, sizes, outputs, horizontal);
+                for (String output : outputs) {
+                    System.out.println("Carved image saved as " + output + ".");
+                }
+                console.close();
+                return;
+            } else if (erase) {
+                int numErased = carver.erase(showSeams, highlightColor);
+                System.out.println(numErased + " seams carved to erase the object from " + filename + ".");
+            } else if (insert) {
+                int numInserted = carver.enlarge(seams, showSeams, highlightColor);
+                System.out.println(numInserted + " seams inserted into " + filename + ".");
+            } else {
+                ProgressListener progress = new ProgressListener() {
+                    public void progress(String phase, int done, int total) {}
+
+                    public void seams(int done, int total, long remaining) {
+                        if (done * 100L / total == (done - 1) * 100L / total) return;
+                        System.out.print("\rCarved " + done + "/" + total + " seams, "
+                                + (remaining + 999) / 1000 + "s remaining.   ");
+                        if (done == total) System.out.println();
+                    }
+                };
+                int numCarved = carver.remove(seams, showSeams, highlightColor, progress, CancellationToken.NONE);
+                System.out.println(numCarved + " seams carved from " + filename + ".");
+            }
+            image = carver.getImage();
+            width = carver.getWidth();
+            height = carver.getHeight();
+        }
         System.out.println("Output file name: ");
         String output = console.next();
-        Utils.writeImage(carver.getImage(), carver.getWidth(), carver.getHeight(), horizontal, output);
+        Utils.writeImage(image, width, height, horizontal, output);
         System.out.println("Carved image saved as " + output + ".");
 
         console.close();
     }
 
+    /*
+     * Carves every image read from stdin to the same size and writes the carved images
+     * to stdout in the order they came, in the format they came in unless another one
+     * is given. Progress is reported on stderr.
+     * Usage: java Console --stream <width>x<height> [backward|forward] [png|ppm|pam|raw]
+     *
+     * @param args      The command line arguments.
+     * @throws          IOException if an image could not be read or written.
+     */
+    public static void stream(String[] args) throws IOException {
+        if (args.length < 2 || !args[1].matches("\\d+x\\d+")) {
+            System.err.println("Usage: java Console --stream <width>x<height> [backward|forward] [png|ppm|pam|raw]");
+            System.exit(2);
+        }
+        String[] size = args[1].split("x");
+        int width = Integer.parseInt(size[0]), height = Integer.parseInt(size[1]);
+        EnergyType type = EnergyType.BACKWARD;
+        ImageStream.Format format = null;
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i].toLowerCase(Locale.ROOT);
+            if (arg.equals("forward")) {
+                type = EnergyType.FORWARD;
+            } else if (!arg.equals("backward")) {
+                format = ImageStream.Format.valueOf(arg.toUpperCase(Locale.ROOT));
+            }
+        }
+
+        try (ImageStream stream = new ImageStream(
+                new FileInputStream(FileDescriptor.in).getChannel(),
+                new FileOutputStream(FileDescriptor.out).getChannel()
+        )) {
+            int count = 0;
+            for (ImageStream.Image image; (image = stream.next()) != null;) {
+                long start = System.nanoTime();
+                Karve.Result result = Karve.image(image.pixels).size(width, height).energy(type).carve();
+                stream.write(result.pixels, result.width, result.height, format == null ? image.format : format);
+                System.err.println("Carved image " + (++count) + " from " + image.pixels[0].length + " x "
+                        + image.pixels.length + " in " + (System.nanoTime() - start) / 1000000 + " ms.");
+            }
+        }
+    }
+
     /*
      * Prompt the user for a response and continue prompting until the user
      * enters a valid choice.
@@ -0,0 +1,47 @@
+/*
+ * Display
+ * Alex Eidt
+ * Screen helpers for the GUI. These load AWT and are kept out of the core.
+ */
+
+import java.awt.*;
+
+public class Display {
+
+    /*
+     * Finds the optimal scaling factor such that the display image will be
+     * approximately half the screen width and height.
+     *
+     * @param w         Width of Image.
+     * @param h         Height of Image.
+     * @return          Scaling factor.
+     */
+    public static int getDimensions(int w, int h) {
+        float width = (float) Toolkit.getDefaultToolkit().getScreenSize().width / 2f;
+        float height = (float) Toolkit.getDefaultToolkit().getScreenSize().height / 2f;
+        int scale = 1;
+        float max = 1000000f;
+        for (int i = 2; i < 21; i++) {
+            float tempH = Math.abs(height - ((float) h / i));
+            float tempW = Math.abs(width - ((float) w / i));
+            if (tempH + tempW < max) {
+                max = tempH + tempW;
+                scale = i;
+            }
+        }
+        return scale;
+    }
+
+    /*
+     * Checks whether an image is larger than the area "getDimensions" scales images
+     * to, half the screen width or height.
+     *
+     * @param w         Width of Image.
+     * @param h         Height of Image.
+     * @return          True if the image is wider or taller than the area.
+     */
+    public static boolean exceeds(int w, int h) {
+        Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+        return w > screen.width / 2 || h > screen.height / 2;
+    }
+}
@@ -0,0 +1,10 @@
+/*
+ * EnergyType
+ * Alex Eidt
+ * The energy functions the Seam Carvers can carve with.
+ */
+
+public enum EnergyType {
+    BACKWARD,
+    FORWARD
+}
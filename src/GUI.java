@@ -5,7 +5,6 @@
  * to interface with the Karver.
  */
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.datatransfer.DataFlavor;
@@ -17,8 +16,16 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GUI {
     // Determines the range (0 - SLIDER) of values for the slider.
@@ -33,42 +40,100 @@ public class GUI {
     public static final EnergyType ENERGY_TYPE = EnergyType.BACKWARD;
     // If true, crop snapshots, otherwise all snapshots have same size.
     public static final boolean CROP_SNAPSHOT = false;
+    // PNG compression level of recorded frames. Recording favours speed over file size.
+    public static final int RECORD_LEVEL = PngEncoder.FAST;
+    // If true, images larger than the display are carved on a downscaled proxy
+    // while the full resolution Seam Carvers build in the background.
+    public static final boolean PROGRESSIVE = true;
+    // Milliseconds between applying queued brush strokes while painting.
+    public static final int BRUSH_DELAY = 16;
+    // Maximum number of bytes the Seam Carvers of all open images should use. Images that
+    // were not used recently are saved to disk once the budget is exceeded.
+    public static volatile long WORKSPACE_BUDGET = Runtime.getRuntime().maxMemory() / 2;
 
     // Determines the width of the "brush" used to mark the priority mask by clicking on the image.
     private int brushWidth;
     // Flag storing whether the carving animation is happening.
-    private boolean carving;
+    private volatile boolean carving;
     // Flag storing whether the carving is being recorded.
-    private boolean recording;
+    private volatile boolean recording;
     // Flag storing whether the display image should be updated.
-    private boolean update;
+    private volatile boolean update;
     // The direction the carving animation plays. Removing -> False, Adding -> True.
-    private boolean direction;
+    private volatile boolean direction;
     // Flag that determines whether removed/added seams should be colored.
-    private boolean highlight;
+    private volatile boolean highlight;
     // Flag that determines whether horizontal or vertical seam carving happens.
-    private boolean horizontal;
+    private volatile boolean horizontal;
     // Track frame numbers when recording or taking snapshots.
-    private int count;
+    private final AtomicInteger count;
     // Scaling factors for display image.
     private int scaleW, scaleH;
     // The display image.
     private final JLabel displayImage;
-    // Stores the vertical and horizontal Seam Carvers.
-    private final SeamCarver[] carver;
-    // The index of the current Seam Carver in "this.carver".
-    private int idx;
+    // The window the GUI runs in.
+    private final JFrame window;
+    // Runs every change to the vertical and horizontal Seam Carvers and publishes their frames.
+    private volatile CarverSession session;
+    // Version of the last frame copied into the display image, and whether it was horizontal.
+    private long shownVersion;
+    private boolean shownHorizontal;
+    // Dimensions of the last frame shown. Used to convert mouse coordinates.
+    private int frameWidth, frameHeight;
+    // True while a repaint of the latest frame is waiting on the Event Dispatch Thread.
+    private final AtomicBoolean renderQueued;
+    // The open images and their Seam Carvers.
+    private final Workspace workspace;
+    // The image the session carves.
+    private volatile Workspace.Entry entry;
+    // The open image files in the order they were opened, as listed in "images".
+    private final List<File> openFiles;
+    // Lists the open images. Selecting one switches to it.
+    private final JComboBox<String> images;
+    // True while "images" is changed by the program rather than by the user.
+    private boolean listingImages;
+    // Builds the Seam Carvers for dropped images off the Event Dispatch Thread.
+    private final ExecutorService loaders;
+    // Loads the most recently dropped image.
+    private Future<?> load;
+    // Incremented whenever an image is dropped. Builds for older images are abandoned.
+    private final AtomicInteger generation;
+    // Shows the progress of building the Seam Carvers.
+    private final JProgressBar progressBar;
     // Create Seam Carvers.
     private final SeamCarverFactory factory;
     // Buffered Image for display.
     private BufferedImage bufferedImage;
+    // If true, the next display update copies the entire image instead of the changed region.
+    private boolean repaintAll;
+    // Brush points queued by drag events that are not yet applied to the mask.
+    private final List<int[]> stroke;
+    // The last brush point applied to the mask. Null at the start of a stroke.
+    private int[] brushPoint;
+    // The mask value painted by the current stroke.
+    private int brushMask;
+    // Applies the queued brush points at most once every BRUSH_DELAY milliseconds.
+    private final Timer brushTimer;
 
     public GUI() {
-        this.carver = new SeamCarver[]{null, null};
+        this.count = new AtomicInteger();
+        this.renderQueued = new AtomicBoolean();
+        this.workspace = new Workspace(WORKSPACE_BUDGET);
+        this.openFiles = new ArrayList<>();
+        this.generation = new AtomicInteger();
+        this.loaders = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
         this.factory = new SeamCarverFactory();
         this.update = true;
+        this.stroke = new ArrayList<>();
+        this.brushTimer = new Timer(BRUSH_DELAY, e -> this.applyStroke());
+        this.brushTimer.setRepeats(false);
 
         JFrame frame = new JFrame("Karve");
+        this.window = frame;
         JPanel panel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
 
         // Add the display image showing the image being carved.
@@ -90,6 +155,22 @@ public class GUI {
         titlePanel.add(title);
         menuPanel.add(titlePanel);
 
+        // Add the progress bar shown while images are loading.
+        this.progressBar = new JProgressBar();
+        this.progressBar.setStringPainted(true);
+        this.progressBar.setString("Drop an image to start");
+        menuPanel.add(this.progressBar);
+
+        // Add the list of open images.
+        this.images = new JComboBox<>();
+        this.images.setFocusable(false);
+        this.images.addActionListener(e -> {
+            int index = this.images.getSelectedIndex();
+            if (this.listingImages || index < 0) return;
+            this.load(Collections.singletonList(this.openFiles.get(index)), frame, menuPanel);
+        });
+        menuPanel.add(this.images);
+
         // Add the slider.
         JPanel sliderPanel = new JPanel();
         JSlider slider = new JSlider(JSlider.HORIZONTAL, 0, SLIDER, SLIDER / 2);
@@ -113,8 +194,7 @@ public class GUI {
         highlightCheckBox.setFont(font);
         highlightCheckBox.addItemListener(e -> {
             this.highlight = !this.highlight;
-            this.carver[this.idx].updateImage(this.highlight, SEAM_COLOR);
-            this.updateDisplayImage();
+            this.session.highlight(this.highlight, SEAM_COLOR);
         });
         checkBoxPanel.add(highlightCheckBox);
         // "Horizontal" checkbox.
@@ -122,17 +202,17 @@ public class GUI {
         horizontalCheckBox.setFont(font);
         horizontalCheckBox.addItemListener(e -> {
             this.horizontal = !this.horizontal;
-            this.idx = this.horizontal ? 1 : 0;
-            this.clearBufferedImage();
-            if (this.update) this.updateDisplayImage();
-            SeamCarver carver = this.carver[this.idx];
-            frame.setTitle("Karve - " + carver.getWidth() + " x " + carver.getHeight());
+            this.session.setHorizontal(this.horizontal);
         });
         checkBoxPanel.add(horizontalCheckBox);
         // "Recording" checkbox.
         JCheckBox recordingCheckBox = new JCheckBox("Recording");
         recordingCheckBox.setFont(font);
-        recordingCheckBox.addItemListener(e -> this.recording = !this.recording);
+        recordingCheckBox.addItemListener(e -> {
+            this.recording = !this.recording;
+            // Frames are published while recording even if the display is not updated.
+            this.session.setUpdate(this.update || this.recording, this.highlight, SEAM_COLOR);
+        });
         checkBoxPanel.add(recordingCheckBox);
         // "Update" checkbox.
         JCheckBox updateCheckBox = new JCheckBox("Update");
@@ -140,12 +220,8 @@ public class GUI {
         updateCheckBox.setSelected(this.update);
         updateCheckBox.addItemListener(e -> {
             this.update = !this.update;
-            this.carver[this.idx].updateImage(this.highlight, SEAM_COLOR);
-            if (this.update) {
-                this.clearBufferedImage();
-                this.updateDisplayImage();
-            }
-            this.carver[this.idx].setUpdate(this.update);
+            if (this.update) this.repaintAll = true;
+            this.session.setUpdate(this.update || this.recording, this.highlight, SEAM_COLOR);
         });
         checkBoxPanel.add(updateCheckBox);
 
@@ -181,11 +257,11 @@ public class GUI {
             // and repeat until the user stops carving.
             while (this.carving) {
                 if (this.direction) {
-                    this.carveAdd(frame, slider);
-                    this.carveRemove(frame, slider);
+                    this.carveAdd(slider);
+                    this.carveRemove(slider);
                 } else {
-                    this.carveRemove(frame, slider);
-                    this.carveAdd(frame, slider);
+                    this.carveRemove(slider);
+                    this.carveAdd(slider);
                 }
             }
         };
@@ -200,6 +276,7 @@ public class GUI {
             updateCheckBox.setEnabled(this.carving);
             recordingCheckBox.setEnabled(this.carving);
             horizontalCheckBox.setEnabled(this.carving);
+            this.images.setEnabled(this.carving);
             this.carving = !this.carving;
             if (this.carving) {
                 playButton.setIcon(pause);
@@ -212,28 +289,21 @@ public class GUI {
         // Add seam back when "Add" button is clicked.
         addButton.addActionListener(e -> {
             this.direction = true;
-            SeamCarver carver = this.carver[this.idx];
-            boolean valid = carver.add(this.highlight, SEAM_COLOR);
-            if (valid) {
-                if (this.recording) captureSnapshot();
-                if (this.update) this.updateDisplayImage();
-                frame.setTitle("Karve - " + carver.getWidth() + " x " + carver.getHeight());
-            }
+            this.step(this.session.add(this.highlight, SEAM_COLOR));
         });
         // Remove seam when "Remove" button is clicked.
         removeButton.addActionListener(e -> {
             this.direction = false;
-            SeamCarver carver = this.carver[this.idx];
-            boolean valid = carver.remove(this.highlight, SEAM_COLOR);
-            if (valid) {
-                if (this.recording) captureSnapshot();
-                if (this.update) this.updateDisplayImage();
-                frame.setTitle("Karve - " + carver.getWidth() + " x " + carver.getHeight());
-            }
+            this.step(this.session.remove(this.highlight, SEAM_COLOR));
         });
         // Create a snapshot of the current image when the "Snapshot" button is clicked.
         snapshotButton.addActionListener(e -> {
-            if (!this.recording) captureSnapshot();
+            if (this.recording) return;
+            if (this.entry.proxyScale > 1) {
+                this.exportFullResolution();
+            } else {
+                captureSnapshot(PngEncoder.DEFAULT);
+            }
         });
         buttonPanel.add(playButton);
         buttonPanel.add(addButton);
@@ -243,12 +313,14 @@ public class GUI {
         menuPanel.add(buttonPanel);
         menuPanel.setLayout(new BoxLayout(menuPanel, BoxLayout.Y_AXIS));
         this.setEnabled(menuPanel, false);
+        this.progressBar.setEnabled(true);
 
         panel.add(menuPanel);
 
         frame.add(panel);
         frame.pack();
 
+        Runtime.getRuntime().addShutdownHook(new Thread(this.workspace::close));
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setLocationRelativeTo(null);
         frame.setResizable(false);
@@ -258,15 +330,12 @@ public class GUI {
     /*
      * Add Seams back to the image when using the animate feature.
      *
-     * @param frame     The UI Window. The title is updated to reflect the current size of the image.
      * @param slider    The slider used to determine animation speed.
      */
-    private void carveAdd(JFrame frame, JSlider slider) {
-        SeamCarver carver = this.carver[this.idx];
-        while (this.carving && carver.add(this.highlight, SEAM_COLOR)) {
-            if (this.recording) captureSnapshot();
-            if (this.update) this.updateDisplayImage();
-            frame.setTitle("Karve - " + carver.getWidth() + " x " + carver.getHeight());
+    private void carveAdd(JSlider slider) {
+        while (this.carving && this.await(this.session.add(this.highlight, SEAM_COLOR))) {
+            if (this.recording) captureSnapshot(RECORD_LEVEL);
+            this.updateTitle();
             Utils.delay(SLIDER - slider.getValue());
         }
     }
@@ -274,23 +343,56 @@ public class GUI {
     /*
      * Remove Seams from the image when using the animate feature.
      *
-     * @param frame     The UI Window. The title is updated to reflect the current size of the image.
      * @param slider    The slider used to determine animation speed.
      */
-    private void carveRemove(JFrame frame, JSlider slider) {
-        SeamCarver carver = this.carver[this.idx];
-        while (this.carving && carver.remove(this.highlight, SEAM_COLOR)) {
-            if (this.recording) captureSnapshot();
-            if (this.update) this.updateDisplayImage();
-            frame.setTitle("Karve - " + carver.getWidth() + " x " + carver.getHeight());
+    private void carveRemove(JSlider slider) {
+        while (this.carving && this.await(this.session.remove(this.highlight, SEAM_COLOR))) {
+            if (this.recording) captureSnapshot(RECORD_LEVEL);
+            this.updateTitle();
             Utils.delay(SLIDER - slider.getValue());
         }
     }
 
+    /*
+     * Finishes adding or removing a single seam off the Event Dispatch Thread.
+     *
+     * @param step      The add or remove queued on the session.
+     */
+    private void step(Future<Boolean> step) {
+        this.loaders.submit(() -> {
+            if (this.await(step)) {
+                if (this.recording) captureSnapshot(RECORD_LEVEL);
+                this.updateTitle();
+            }
+        });
+    }
+
+    /*
+     * Waits for a seam to be added or removed.
+     *
+     * @param step      The add or remove queued on the session.
+     * @return          True if a seam was added or removed.
+     */
+    private boolean await(Future<Boolean> step) {
+        try {
+            return step.get();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Shows the size of the current image in the window title.
+    private void updateTitle() {
+        CarverSession session = this.session;
+        int width = session.getWidth(), height = session.getHeight();
+        SwingUtilities.invokeLater(() -> this.window.setTitle("Karve - " + width + " x " + height));
+    }
+
     /*
      * Clears the display image by making all pixels transparent.
      */
     private void clearBufferedImage() {
+        this.repaintAll = true;
         for (int y = 0; y < this.bufferedImage.getHeight(); y++) {
             for (int x = 0; x < this.bufferedImage.getWidth(); x++) {
                 this.bufferedImage.setRGB(x, y, 0xFF);
@@ -299,12 +401,16 @@ public class GUI {
     }
 
     /*
-     * Sets/Updates the display image to the current state of the selected
-     * Seam Carver.
+     * Repaints the display image with the latest frame of the session on the Event
+     * Dispatch Thread. Frames published while a repaint is already waiting are
+     * shown by that repaint.
      */
-    private void updateDisplayImage() {
-        ImageIcon icon = this.updateBufferedImage();
-        this.displayImage.setIcon(icon);
+    private void queueRender() {
+        if (this.renderQueued.getAndSet(true)) return;
+        SwingUtilities.invokeLater(() -> {
+            this.renderQueued.set(false);
+            this.render();
+        });
     }
 
     /*
@@ -334,47 +440,244 @@ public class GUI {
      */
     private void addDropTarget(JFrame frame, JPanel menuPanel) {
         this.displayImage.setDropTarget(new DropTarget() {
-            public synchronized void drop(DropTargetDropEvent evt) {
+            public void drop(DropTargetDropEvent evt) {
                 if (carving) return;
+                List<File> droppedFiles;
                 try {
                     evt.acceptDrop(DnDConstants.ACTION_COPY);
-                    List<File> droppedFiles = (List) evt
+                    droppedFiles = (List) evt
                                     .getTransferable()
                                     .getTransferData(DataFlavor.javaFileListFlavor);
-                    File image = droppedFiles.get(0);
+                    evt.dropComplete(true);
+                } catch (Exception ignored) {
+                    evt.dropComplete(false);
+                    return;
+                }
+                if (!droppedFiles.isEmpty()) load(droppedFiles, frame, menuPanel);
+            }
+        });
+    }
 
-                    // Vertical Seam Carver
-                    carver[0] = factory.create(image, false, ENERGY_TYPE);
-                    // Horizontal Seam Carver
-                    carver[1] = factory.create(image, true, ENERGY_TYPE);
+    /*
+     * Opens the given images in the background and switches to the first one. Images
+     * that are already open are not loaded again, so switching back to a recently used
+     * image is instant. Any image that is still loading is abandoned. The menu is
+     * disabled until the Seam Carvers are ready.
+     *
+     * @param files     The image files to open.
+     * @param frame     The current window frame. Used to update the title.
+     * @param menuPanel The menuPanel to enable once the image is loaded.
+     */
+    private void load(List<File> files, JFrame frame, JPanel menuPanel) {
+        int id = this.generation.incrementAndGet();
+        if (this.load != null) this.load.cancel(true);
 
-                    int width = carver[0].getWidth();
-                    int height = carver[0].getHeight();
-                    brushWidth = Utils.max(Utils.min(width, height) / 120, 5);
+        this.setEnabled(menuPanel, false);
+        this.progressBar.setEnabled(true);
+        this.progressBar.setValue(0);
+        this.progressBar.setString("Reading " + files.get(0).getName());
 
-                    bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-                    bufferedImage.setAccelerationPriority(1f);
+        this.load = this.loaders.submit(() -> {
+            Workspace.Entry first = null;
+            for (File file : files) {
+                if (this.generation.get() != id) return;
+                try {
+                    Workspace.Entry entry = this.workspace.get(file);
+                    if (entry == null) entry = this.build(file, id);
+                    if (first == null) first = entry;
+                } catch (Exception e) {
+                    this.finish(id, "Could not load " + file.getName());
+                }
+            }
+            if (first == null) {
+                // Keep carving the current image if none of the files could be opened.
+                SwingUtilities.invokeLater(() -> {
+                    if (this.generation.get() == id && this.session != null) this.setEnabled(menuPanel, true);
+                });
+                return;
+            }
+            try {
+                this.activate(first, id, frame, menuPanel);
+            } catch (Exception e) {
+                this.finish(id, "Could not restore " + first.file.getName());
+            }
+        });
+    }
 
-                    idx = horizontal ? 1 : 0;
-                    int scale = Utils.getDimensions(carver[idx].getWidth(), carver[idx].getHeight());
-                    scaleW = width / scale;
-                    scaleH = height / scale;
+    /*
+     * Builds the Seam Carvers for the given image and adds it to the workspace. Runs
+     * off the Event Dispatch Thread.
+     *
+     * @param file      The image file to load.
+     * @param id        The generation of the load. If another image is dropped, the build is abandoned.
+     * @return          The image in the workspace.
+     * @throws          Exception if the image could not be loaded or the load was abandoned.
+     */
+    private Workspace.Entry build(File file, int id) throws Exception {
+        int[][] image = Utils.readImage(file);
+        if (image == null) throw new IOException(file.getName() + " is not an image");
+        int scale = Display.getDimensions(image[0].length, image.length);
+        // Images that fit the display are carved at full resolution right away.
+        int proxyScale = PROGRESSIVE && Display.exceeds(image[0].length, image.length) ? scale : 1;
 
-                    ImageIcon icon = updateBufferedImage();
-                    displayImage.setIcon(icon);
+        // Reading the image is the first step, then each Seam Carver reports its own steps.
+        int steps = 1 + 2 * SeamCarverBase.BUILD_STEPS * (proxyScale > 1 ? 2 : 1);
+        AtomicInteger done = new AtomicInteger();
+        // The full resolution build belongs to the workspace entry, so it keeps going
+        // when another image is dropped and only stops showing its progress.
+        ProgressListener background = (phase, step, total) -> {
+            int value = done.incrementAndGet();
+            SwingUtilities.invokeLater(() -> {
+                if (this.generation.get() != id) return;
+                this.progressBar.setMaximum(steps);
+                this.progressBar.setValue(value);
+                this.progressBar.setString(phase);
+            });
+        };
+        ProgressListener listener = (phase, step, total) -> {
+            if (this.generation.get() != id) throw new CancellationException();
+            background.progress(phase, step, total);
+        };
+        listener.progress("Reading image", 1, 1);
 
-                    setEnabled(menuPanel, true);
-                    frame.pack();
-                    frame.setTitle("Karve - " + carver[idx].getWidth() + " x " + carver[idx].getHeight());
+        if (proxyScale == 1) {
+            Workspace.Entry entry = this.workspace.open(file, this.buildPair(image, listener), 1, scale);
+            this.finish(id, "Ready");
+            return entry;
+        }
+        // Carve a proxy the size of the display right away and build the
+        // full resolution Seam Carvers in the background.
+        SeamCarver[] carvers = this.buildPair(Utils.downscale(image, proxyScale), listener);
+        Workspace.Entry entry = this.workspace.open(file, carvers, proxyScale, 1);
+        entry.setFullLoad(this.loaders.submit(() -> {
+            SeamCarver[] result = this.buildPair(image, background);
+            this.finish(id, "Full resolution ready");
+            return result;
+        }));
+        return entry;
+    }
 
-                    evt.dropComplete(true);
-                } catch (Exception ignored) {
-                    evt.dropComplete(false);
-                }
+    /*
+     * Hands the Seam Carvers of an image to a new session and shows it. Evicted Seam
+     * Carvers are restored from their checkpoints first. Runs off the Event Dispatch
+     * Thread.
+     *
+     * @param entry     The image to switch to.
+     * @param id        The generation of the load.
+     * @param frame     The current window frame. Used to update the title.
+     * @param menuPanel The menuPanel to enable.
+     * @throws          Exception if the Seam Carvers could not be restored.
+     */
+    private void activate(Workspace.Entry entry, int id, JFrame frame, JPanel menuPanel) throws Exception {
+        CarverSession session = this.workspace.attach(entry, carvers -> new CarverSession(carvers[0], carvers[1]));
+        // The full resolution Seam Carvers of proxies are dropped on eviction or may have
+        // failed to build, and are rebuilt here.
+        if (entry.proxyScale > 1 && !entry.hasFullLoad()) {
+            entry.setFullLoad(this.loaders.submit(() -> {
+                int[][] image = Utils.readImage(entry.file);
+                return this.buildPair(image, ProgressListener.NONE);
+            }));
+        }
+        SwingUtilities.invokeLater(() -> {
+            if (this.generation.get() != id) {
+                this.loaders.submit(() -> {
+                    this.workspace.detach(entry, session);
+                    return null;
+                });
+                return;
             }
+            this.show(entry, session, frame, menuPanel);
+        });
+        if (entry.getFullLoad() == null || entry.getFullLoad().isDone()) this.finish(id, "Ready");
+    }
+
+    /*
+     * Builds the vertical and horizontal Seam Carvers for the given image concurrently.
+     *
+     * @param image     The image to carve.
+     * @param listener  The listener to report progress to.
+     * @return          The vertical and horizontal Seam Carvers.
+     * @throws          Exception if either Seam Carver could not be built.
+     */
+    private SeamCarver[] buildPair(int[][] image, ProgressListener listener) throws Exception {
+        // The horizontal Seam Carver mirrors its image in place, so it gets a copy.
+        int[][] copy = Utils.copy(image);
+        Future<SeamCarver> vertical = this.loaders.submit(
+                () -> this.factory.create(image, false, ENERGY_TYPE, listener)
+        );
+        SeamCarver horizontal = this.factory.create(copy, true, ENERGY_TYPE, listener);
+        return new SeamCarver[]{vertical.get(), horizontal};
+    }
+
+    /*
+     * Shows the final state of a load on the progress bar.
+     *
+     * @param id        The generation of the load.
+     * @param message   The message to show.
+     */
+    private void finish(int id, String message) {
+        SwingUtilities.invokeLater(() -> {
+            if (this.generation.get() != id) return;
+            this.progressBar.setValue(this.progressBar.getMaximum());
+            this.progressBar.setString(message);
         });
     }
 
+    /*
+     * Replaces the current session with the session of another image and displays it.
+     * The previous image is handed back to the workspace, which may save it to disk.
+     * Must be called on the Event Dispatch Thread.
+     *
+     * @param entry         The image to show.
+     * @param session       The session carving the image.
+     * @param frame         The current window frame. Used to update the title.
+     * @param menuPanel     The menuPanel to enable.
+     */
+    private void show(Workspace.Entry entry, CarverSession session, JFrame frame, JPanel menuPanel) {
+        CarverSession previous = this.session;
+        Workspace.Entry previousEntry = this.entry;
+        if (previous != null) {
+            previous.setListener(null);
+            this.loaders.submit(() -> {
+                this.workspace.detach(previousEntry, previous);
+                return null;
+            });
+        }
+        session.setHorizontal(this.horizontal);
+        session.setUpdate(this.update || this.recording, this.highlight, SEAM_COLOR);
+        this.entry = entry;
+
+        int width = entry.width, height = entry.height;
+        this.brushWidth = Utils.max(Utils.min(width, height) / 120, 5);
+
+        this.bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.bufferedImage.setAccelerationPriority(1f);
+        this.repaintAll = true;
+        this.shownVersion = 0;
+
+        this.scaleW = width / entry.scale;
+        this.scaleH = height / entry.scale;
+
+        this.displayImage.setIcon(this.displayIcon());
+        this.session = session;
+        session.setListener(this::queueRender);
+        this.queueRender();
+
+        // List the image if it was just opened and select it.
+        this.listingImages = true;
+        int index = this.openFiles.indexOf(entry.file);
+        if (index < 0) {
+            this.openFiles.add(entry.file);
+            this.images.addItem(entry.file.getName());
+            index = this.openFiles.size() - 1;
+        }
+        this.images.setSelectedIndex(index);
+        this.listingImages = false;
+
+        this.setEnabled(menuPanel, true);
+        frame.pack();
+    }
+
     /*
      * Adds Key Bindings to Buttons.
      *
@@ -400,113 +703,329 @@ public class GUI {
      * mark high and low priority areas on the image for carving.
      */
     private void addMouseListener() {
-        // Change pixels values of sobel image to change where seams appear.
+        // Change the priority mask to change where seams appear.
         // Change pixels by clicking on the image.
-        this.displayImage.addMouseMotionListener(new MouseAdapter() {
+        MouseAdapter brush = new MouseAdapter() {
+            /*
+             * Starts a new brush stroke where the user clicks.
+             */
+            @Override
+            public void mousePressed(MouseEvent e) {
+                brushPoint = null;
+                queueStroke(e);
+            }
+
             /*
              * Activates whenever the user clicks and drags their mouse over any part
-             * of the display image. The coordinates the user click on are converted into
-             * pixel coordinates corresponding to the actual image. Depending on
-             * a left or right-click the corresponding pixels are colored red or green
-             * to show areas of low or high priority.
+             * of the display image. Drag events are only queued here and applied
+             * together once per frame by "applyStroke".
              */
-            Random rand = new Random(System.currentTimeMillis());
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (carving || !update || carver[idx] == null) return;
-                float x = e.getX(), y = e.getY();
-                SeamCarver current = carver[idx];
-                int imageWidth = bufferedImage.getWidth(), imageHeight = bufferedImage.getHeight();
-                float labelStepW = (float) imageWidth / displayImage.getWidth();
-                float labelStepH = (float) imageHeight / displayImage.getHeight();
-                int cX = (int) (x * labelStepW + 0.5f); // X coordinate on actual image.
-                int cY = (int) (y * labelStepH + 0.5f); // Y coordinate on actual image.
-                if (horizontal) { int temp = cX; cX = cY; cY = temp; cY = imageWidth - cY; }
-                if (horizontal) { int temp = imageWidth; imageWidth = imageHeight; imageHeight = temp; }
-                if (cX >= imageWidth || cY >= imageHeight) return;
-                boolean isLeftClick = SwingUtilities.isLeftMouseButton(e);
-                int energy = isLeftClick ? 0 : (ENERGY_TYPE == EnergyType.FORWARD ? rand.nextInt(256) : 255);
-                int color = isLeftClick ? Color.RED.getRGB() : Color.GREEN.getRGB();
-                int[] image = current.getImage();
-                int cWidth = current.getWidth(), cHeight = current.getHeight();
-                for (int r = Utils.max(cY - brushWidth, 0); r < Utils.min(cY + brushWidth, cHeight); r++) {
-                    for (int c = Utils.max(cX - brushWidth, 0); c < Utils.min(cX + brushWidth, cWidth); c++) {
-                        // If left click, remove edge at given coordinate. If right click, add edge.
-                        current.setEnergy(c, r, energy);
-                        image[r * cWidth + c] = color;
-                    }
-                }
-                updateDisplayImage();
+                queueStroke(e);
             }
-        });
+
+            /*
+             * Applies the rest of the stroke when the user lets go of the mouse.
+             */
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                applyStroke();
+                brushPoint = null;
+            }
+        };
+        this.displayImage.addMouseListener(brush);
+        this.displayImage.addMouseMotionListener(brush);
+    }
+
+    /*
+     * Converts the coordinates the user clicked on into pixel coordinates of the
+     * current Seam Carver and queues them as the next point of the brush stroke.
+     *
+     * @param e     The mouse event.
+     */
+    private void queueStroke(MouseEvent e) {
+        if (this.carving || !this.update || this.session == null) return;
+        float x = e.getX(), y = e.getY();
+        int imageWidth = this.bufferedImage.getWidth(), imageHeight = this.bufferedImage.getHeight();
+        float labelStepW = (float) imageWidth / this.displayImage.getWidth();
+        float labelStepH = (float) imageHeight / this.displayImage.getHeight();
+        int cX = (int) (x * labelStepW + 0.5f); // X coordinate on actual image.
+        int cY = (int) (y * labelStepH + 0.5f); // Y coordinate on actual image.
+        if (this.horizontal) { int temp = cX; cX = cY; cY = temp; cY = imageWidth - cY; }
+        if (this.horizontal) { int temp = imageWidth; imageWidth = imageHeight; imageHeight = temp; }
+        if (cX >= imageWidth || cY >= imageHeight) return;
+        // If left click, mark pixels for removal. If right click, protect them.
+        this.brushMask = SwingUtilities.isLeftMouseButton(e) ? SeamCarver.MASK_REMOVE : SeamCarver.MASK_PROTECT;
+        this.stroke.add(new int[]{cX, cY});
+        if (!this.brushTimer.isRunning()) this.brushTimer.start();
+    }
+
+    /*
+     * Sends the queued brush points to the session, which applies them to the mask of
+     * the current Seam Carver. Each point is joined to the previous one by stamping the
+     * brush along the segment between them, so fast strokes leave no gaps. The marked
+     * pixels are colored red or green and only the columns covering the stroke are
+     * repainted. The energy map is rebuilt once, when the next seam is removed.
+     */
+    private void applyStroke() {
+        this.brushTimer.stop();
+        if (this.stroke.isEmpty() || this.carving || this.session == null) {
+            this.stroke.clear();
+            return;
+        }
+        int mask = this.brushMask;
+        int color = mask == SeamCarver.MASK_REMOVE ? Color.RED.getRGB() : Color.GREEN.getRGB();
+        int cWidth = this.frameWidth, cHeight = this.frameHeight;
+        int step = Utils.max(this.brushWidth / 2, 1);
+        List<Integer> rects = new ArrayList<>();
+        for (int[] point : this.stroke) {
+            int[] from = this.brushPoint == null ? point : this.brushPoint;
+            int dx = point[0] - from[0], dy = point[1] - from[1];
+            int steps = Utils.max(Utils.max(Math.abs(dx), Math.abs(dy)) / step, 1);
+            for (int i = 1; i <= steps; i++) {
+                int x = from[0] + dx * i / steps, y = from[1] + dy * i / steps;
+                int x0 = Utils.max(x - this.brushWidth, 0), x1 = Utils.min(x + this.brushWidth, cWidth);
+                int y0 = Utils.max(y - this.brushWidth, 0), y1 = Utils.min(y + this.brushWidth, cHeight);
+                if (x1 <= x0 || y1 <= y0) continue;
+                rects.addAll(Arrays.asList(x0, y0, x1 - x0, y1 - y0));
+            }
+            this.brushPoint = point;
+        }
+        this.stroke.clear();
+        if (rects.isEmpty()) return;
+        this.session.paint(rects.stream().mapToInt(Integer::intValue).toArray(), mask, color);
+    }
+
+    /*
+     * Creates the icon of the display image. The icon draws "this.bufferedImage"
+     * scaled to the display size whenever it is painted, so changes to the buffered
+     * image only need a repaint of the area they cover.
+     *
+     * @return          The icon of the display image.
+     */
+    private Icon displayIcon() {
+        return new Icon() {
+            @Override
+            public void paintIcon(Component c, Graphics g, int x, int y) {
+                g.drawImage(bufferedImage, x, y, getIconWidth(), getIconHeight(), null);
+            }
+
+            @Override
+            public int getIconWidth() {
+                return Utils.max(scaleW, 1);
+            }
+
+            @Override
+            public int getIconHeight() {
+                return Utils.max(scaleH, 1);
+            }
+        };
+    }
+
+    /*
+     * Repaints the part of the display image covering a rectangle of the buffered image.
+     *
+     * @param x         The x coordinate of the top left corner in the buffered image.
+     * @param y         The y coordinate of the top left corner in the buffered image.
+     * @param width     The width of the rectangle.
+     * @param height    The height of the rectangle.
+     */
+    private void repaintRegion(int x, int y, int width, int height) {
+        int iconWidth = Utils.max(this.scaleW, 1), iconHeight = Utils.max(this.scaleH, 1);
+        float stepW = (float) iconWidth / this.bufferedImage.getWidth();
+        float stepH = (float) iconHeight / this.bufferedImage.getHeight();
+        // The icon is centered in the label.
+        int offsetX = (this.displayImage.getWidth() - iconWidth) / 2;
+        int offsetY = (this.displayImage.getHeight() - iconHeight) / 2;
+        this.displayImage.repaint(
+                offsetX + (int) (x * stepW) - 1,
+                offsetY + (int) (y * stepH) - 1,
+                (int) Math.ceil(width * stepW) + 2,
+                (int) Math.ceil(height * stepH) + 2
+        );
+    }
+
+    /*
+     * Copies the latest frame of the session into the display image. Only the columns
+     * that changed since the last frame shown are copied and repainted. Must be called
+     * on the Event Dispatch Thread.
+     */
+    private void render() {
+        CarverSession session = this.session;
+        if (session == null) return;
+        CarverSession.Frame frame = session.acquire();
+        try {
+            this.frameWidth = frame.width;
+            this.frameHeight = frame.height;
+            this.window.setTitle("Karve - " + frame.width + " x " + frame.height);
+            if (!this.update || (frame.version == this.shownVersion && !this.repaintAll)) return;
+            if (frame.horizontal != this.shownHorizontal) this.clearBufferedImage();
+
+            int[] changed = this.repaintAll ? new int[]{0, Integer.MAX_VALUE} : frame.changedSince(this.shownVersion);
+            this.repaintAll = false;
+            this.shownVersion = frame.version;
+            this.shownHorizontal = frame.horizontal;
+            int end = this.drawFrame(this.bufferedImage, frame, changed[0], changed[1]);
+            if (end <= changed[0]) return;
+            if (frame.horizontal) {
+                this.repaintRegion(0, changed[0], this.bufferedImage.getWidth(), end - changed[0]);
+            } else {
+                this.repaintRegion(changed[0], 0, end - changed[0], this.bufferedImage.getHeight());
+            }
+        } finally {
+            frame.release();
+        }
     }
 
     /*
-     * Updates the display image for the UI.
+     * Draws a range of columns of a frame into an image. Columns past the width of
+     * the frame are cleared, as is the last column of the frame.
      *
-     * @return          An ImageIcon representing the scaled image.
+     * @param image     The image to draw into.
+     * @param frame     The frame to draw.
+     * @param start     First column to draw.
+     * @param end       End of the columns to draw, exclusive.
+     * @return          End of the columns that were drawn or cleared.
      */
-    private ImageIcon updateBufferedImage() {
-        SeamCarver carver = this.carver[this.idx];
-
-        int width = carver.getWidth();
-        int height = carver.getHeight();
-
-        int[] pixels = carver.getImage();
-        if (this.horizontal) {
-            Utils.parallel((cpu, cpus) -> {
-                for (int y = height - 1 - cpu; y >= 0; y -= cpus) {
-                    for (int x = 0; x < width; x++) {
-                        this.bufferedImage.setRGB(y, x, pixels[y * width + x]);
+    private int drawFrame(BufferedImage image, CarverSession.Frame frame, int start, int end) {
+        int width = frame.width, height = frame.height;
+        int[] pixels = frame.pixels;
+        boolean horizontal = frame.horizontal;
+        int limit = horizontal ? image.getHeight() : image.getWidth();
+        int copyEnd = Utils.min(end, width);
+        int clearEnd = Utils.max(Utils.min(end, limit), width);
+        Utils.parallel((cpu, cpus) -> {
+            for (int y = cpu; y < height; y += cpus) {
+                for (int x = start; x < copyEnd; x++) {
+                    if (horizontal) {
+                        image.setRGB(y, x, pixels[y * width + x]);
+                    } else {
+                        image.setRGB(x, y, pixels[y * width + x]);
                     }
                 }
-                for (int y = cpu; y < height; y += cpus) {
-                    this.bufferedImage.setRGB(y, width - 1, 0xFF);
-                }
-            });
-        } else {
-            Utils.parallel((cpu, cpus) -> {
-                for (int y = cpu; y < height; y += cpus) {
-                    for (int x = 0; x < width; x++) {
-                        this.bufferedImage.setRGB(x, y, pixels[y * width + x]);
+                for (int x = width - 1; x < clearEnd; x++) {
+                    if (horizontal) {
+                        image.setRGB(y, x, 0xFF);
+                    } else {
+                        image.setRGB(x, y, 0xFF);
                     }
                 }
-                for (int y = cpu; y < height; y += cpus) {
-                    this.bufferedImage.setRGB(width - 1, y, 0xFF);
-                }
-            });
-        }
-
-        return new ImageIcon(this.bufferedImage.getScaledInstance(
-                Utils.max(this.scaleW, 1),
-                Utils.max(this.scaleH, 1),
-                Image.SCALE_FAST
-        ));
+            }
+        });
+        return clearEnd;
     }
 
     /*
      * Captures the current image and saves to a PNG file in the "Snapshots" directory.
+     * The image is encoded straight from the frame without going through ImageIO.
      *
+     * @param level     PNG compression level.
      * @return          See "Snapshots" directory.
      */
-    private void captureSnapshot() {
-        SeamCarver carver = this.carver[this.idx];
-        String filename = Utils.joinPath(Main.SNAPSHOTS_DIR, "Snapshot" + this.count++ + ".png");
-        if (CROP_SNAPSHOT) {
-            Utils.writeImage(
-                    carver.getImage(),
-                    carver.getWidth(),
-                    carver.getHeight(),
-                    this.horizontal,
-                    filename
-            );
-        } else {
-            File snapshot = new File(filename);
+    private void captureSnapshot(int level) {
+        CarverSession.Frame frame = this.session.acquire();
+        try {
+            String filename = Utils.joinPath(Main.SNAPSHOTS_DIR, "Snapshot" + this.count.getAndIncrement() + ".png");
+            if (CROP_SNAPSHOT) {
+                Utils.writeImage(frame.pixels, frame.width, frame.height, frame.horizontal, filename, level);
+                return;
+            }
+            // All snapshots have the size of the display image. Columns past the
+            // image are transparent, like in the display image.
+            int width = this.bufferedImage.getWidth(), height = this.bufferedImage.getHeight();
+            int[] pixels = new int[width * height];
+            Arrays.fill(pixels, 0xFF);
+            int columns = Utils.min(frame.width - 1, frame.horizontal ? height : width);
+            for (int y = 0; y < frame.height; y++) {
+                for (int x = 0; x < columns; x++) {
+                    int pixel = frame.pixels[y * frame.width + x];
+                    if (frame.horizontal) {
+                        pixels[x * width + y] = pixel;
+                    } else {
+                        pixels[y * width + x] = pixel;
+                    }
+                }
+            }
             try {
-                ImageIO.write(this.bufferedImage, "PNG", snapshot);
+                PngEncoder.write(pixels, width, height, true, level, new File(filename));
             } catch (IOException ignored) {}
+        } finally {
+            frame.release();
         }
+    }
+
+    /*
+     * Applies the mask and the number of removed seams of the current proxy Seam Carver
+     * to the full resolution Seam Carver and saves the result to a PNG file in the
+     * "Snapshots" directory. Runs on the loaders, as the full resolution Seam Carvers
+     * may still be building and carving them takes a while. Progress is shown on the
+     * progress bar.
+     */
+    private void exportFullResolution() {
+        Workspace.Entry entry = this.entry;
+        CarverSession session = this.session;
+        boolean horizontal = this.horizontal, highlight = this.highlight;
+        this.showExport("Waiting for the full resolution image", 0, 1);
+        this.loaders.submit(() -> {
+            int proxyScale = entry.proxyScale;
+            SeamCarver carver;
+            int[][] proxyMask;
+            int proxyCarved;
+            try {
+                carver = entry.getFullLoad().get()[horizontal ? 1 : 0];
+                proxyMask = session.call(SeamCarver::getMask).get();
+                proxyCarved = session.call(SeamCarver::getWidth).get();
+            } catch (Exception e) {
+                this.showExport("Full resolution export failed", 1, 1);
+                return null;
+            }
+
+            String filename = Utils.joinPath(Main.SNAPSHOTS_DIR, "Snapshot" + this.count.getAndIncrement() + ".png");
+            // Exports of the same image share its full resolution Seam Carver.
+            synchronized (carver) {
+                // Start over from the original image.
+                carver.add(Integer.MAX_VALUE, false, SEAM_COLOR);
+                int proxyWidth = proxyMask[0].length, proxyHeight = proxyMask.length;
+                int width = carver.getWidth(), height = carver.getHeight();
+                int[][] mask = new int[height][width];
+                for (int h = 0; h < height; h++) {
+                    int[] row = proxyMask[Utils.min(h / proxyScale, proxyHeight - 1)];
+                    for (int w = 0; w < width; w++) {
+                        mask[h][w] = row[Utils.min(w / proxyScale, proxyWidth - 1)];
+                    }
+                }
+                carver.loadMask(mask);
+                ProgressListener listener = new ProgressListener() {
+                    public void progress(String phase, int done, int total) {}
 
+                    public void seams(int done, int total, long remaining) {
+                        if (done * 100L / total == (done - 1) * 100L / total) return;
+                        showExport("Exporting full resolution", done, total);
+                    }
+                };
+                int count = (proxyWidth - proxyCarved) * proxyScale;
+                carver.remove(count, highlight, SEAM_COLOR, listener, CancellationToken.NONE);
+                Utils.writeImage(carver.getImage(), carver.getWidth(), carver.getHeight(), horizontal, filename);
+            }
+            this.showExport("Saved " + new File(filename).getName(), 1, 1);
+            return null;
+        });
+    }
+
+    /*
+     * Shows the progress of a full resolution export on the progress bar.
+     *
+     * @param message   The message to show.
+     * @param value     Number of steps done.
+     * @param maximum   Total number of steps.
+     */
+    private void showExport(String message, int value, int maximum) {
+        SwingUtilities.invokeLater(() -> {
+            this.progressBar.setMaximum(maximum);
+            this.progressBar.setValue(value);
+            this.progressBar.setString(message);
+        });
     }
 
     /*
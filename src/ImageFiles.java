@@ -0,0 +1,176 @@
+/*
+ * ImageFiles
+ * Alex Eidt
+ * Reads and writes image files through ImageIO. Kept apart from Utils so that
+ * carving from raw pixel arrays never loads AWT. PPM, PAM and raw images are
+ * passed on to PortableImage and RawImage.
+ */
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+public class ImageFiles {
+
+    /*
+     * Writes the given integer array to a PNG image, or to a PPM, PAM or raw image if
+     * the file name ends with ".ppm", ".pam" or ".raw".
+     *
+     * @param image         Flattened image as an integer array. Each int represents an RGB pixel.
+     * @param width         The width of the image.
+     * @param height        The height of the image.
+     * @param horizontal    For use with horizontal seam carving.
+     * @param filename      Image file name.
+     */
+    public static void writeImage(int[] image, int width, int height, boolean horizontal, String filename) {
+        writeImage(image, width, height, horizontal, filename, PngEncoder.DEFAULT);
+    }
+
+    /*
+     * Writes the given integer array to an image with the given compression level.
+     * PNG images are encoded straight from the array by PngEncoder. The level does not
+     * apply to PPM, PAM and raw images.
+     *
+     * @param image         Flattened image as an integer array. Each int represents an RGB pixel.
+     * @param width         The width of the image.
+     * @param height        The height of the image.
+     * @param horizontal    For use with horizontal seam carving.
+     * @param filename      Image file name.
+     * @param level         Compression level from PngEncoder.STORE to PngEncoder.BEST.
+     */
+    public static void writeImage(int[] image, int width, int height, boolean horizontal, String filename, int level) {
+        int[] pixels = image;
+        int outputWidth = width, outputHeight = height;
+        if (horizontal) {
+            // Horizontal carvers hold the image transposed.
+            outputWidth = height;
+            outputHeight = width;
+            pixels = new int[width * height];
+            int[] output = pixels;
+            Utils.parallel((cpu, cpus) -> {
+                for (int x = cpu; x < width; x += cpus) {
+                    for (int y = 0; y < height; y++) {
+                        output[x * height + y] = image[(height - 1 - y) * width + x];
+                    }
+                }
+            });
+        }
+        File file = new File(filename);
+        try {
+            if (PortableImage.isPortable(file)) {
+                PortableImage.write(pixels, outputWidth, outputHeight, file);
+            } else if (filename.endsWith(".raw")) {
+                RawImage.write(pixels, outputWidth, outputHeight, file);
+            } else {
+                PngEncoder.write(pixels, outputWidth, outputHeight, false, level, file);
+            }
+        } catch (IOException ignored) {}
+    }
+
+    /*
+     * Reads an image into a 2D Integer array, where each int represents an RGB pixel.
+     * PPM, PAM and raw images are memory mapped, anything else is read through ImageIO.
+     *
+     * @param file          Image file to read.
+     * @return              2D Integer array, or null if the file could not be read.
+     */
+    public static int[][] readImage(File file) {
+        try {
+            if (PortableImage.isPortable(file)) return PortableImage.read(file);
+            if (file.getName().endsWith(".raw")) return RawImage.read(file);
+            return pixels(ImageIO.read(file));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Reads the dimensions of an image from its header without decoding the pixels.
+     *
+     * @param file          Image file to read.
+     * @return              The width and height of the image.
+     * @throws              IOException if the file is not an image ImageIO can read.
+     */
+    public static int[] dimensions(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) throw new IOException("Could not read " + file);
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return new int[] {reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /*
+     * Converts a Buffered Image into a 2D Integer array, where each int represents an
+     * RGB pixel.
+     *
+     * @param image         The image to convert.
+     * @return              2D Integer array.
+     */
+    public static int[][] pixels(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[][] pixels = new int[height][width];
+
+        Utils.parallel((cpu, cpus) -> {
+            for (int h = cpu; h < height; h += cpus) {
+                image.getRGB(0, h, width, 1, pixels[h], 0, width);
+            }
+        });
+
+        return pixels;
+    }
+
+    /*
+     * Converts a flattened image into a Buffered Image.
+     *
+     * @param image         Flattened image as an integer array. Each int represents an RGB pixel.
+     * @param width         The width of the image.
+     * @param height        The height of the image.
+     * @return              The Buffered Image.
+     */
+    public static BufferedImage toBufferedImage(int[] image, int width, int height) {
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        bufferedImage.setRGB(0, 0, width, height, image, 0, width);
+        return bufferedImage;
+    }
+
+    /*
+     * Reads a mask image into a 2D Integer array of mask values. Pixels that are mostly
+     * red are marked for removal and pixels that are mostly green are protected.
+     *
+     * @param file          Mask image file to read.
+     * @return              2D Integer array of SeamCarver mask values.
+     */
+    public static int[][] readMask(File file) {
+        int[][] pixels = readImage(file);
+        int height = pixels.length, width = pixels[0].length;
+        int[][] mask = new int[height][width];
+
+        Utils.parallel((cpu, cpus) -> {
+            for (int h = cpu; h < height; h += cpus) {
+                for (int w = 0; w < width; w++) {
+                    int pixel = pixels[h][w];
+                    int r = (pixel >> 16) & 0xFF;
+                    int g = (pixel >> 8) & 0xFF;
+                    if (r > 127 && g < 128) {
+                        mask[h][w] = SeamCarver.MASK_REMOVE;
+                    } else if (g > 127 && r < 128) {
+                        mask[h][w] = SeamCarver.MASK_PROTECT;
+                    }
+                }
+            }
+        });
+
+        return mask;
+    }
+}
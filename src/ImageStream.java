@@ -0,0 +1,220 @@
+/*
+ * ImageStream
+ * Alex Eidt
+ * Reads encoded images one after another from a channel and writes images to a
+ * channel, for carving in shell pipelines. PNG, PPM, PAM and raw images carry
+ * their own length, so any number of them can follow each other in one stream.
+ * Any other format is read until the end of the stream.
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import javax.imageio.ImageIO;
+
+public class ImageStream implements Closeable {
+    // Initial size of the read buffer.
+    private static final int BUFFER = 1 << 20;
+    // Size of the write buffer for PNG images.
+    private static final int WRITE_BUFFER = 1 << 16;
+    // Signature at the start of every PNG image.
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /*
+     * Formats of the images in a stream. OTHER is anything ImageIO can read.
+     */
+    public enum Format {
+        PNG, PPM, PAM, RAW, OTHER
+    }
+
+    /*
+     * An image read from a stream.
+     */
+    public static class Image {
+        // 2D image array where each int represents the RGB pixel.
+        public final int[][] pixels;
+        // The format the image was encoded in.
+        public final Format format;
+
+        private Image(int[][] pixels, Format format) {
+            this.pixels = pixels;
+            this.format = format;
+        }
+    }
+
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    // Bytes read from "in" that do not belong to a returned image yet, from position to limit.
+    private ByteBuffer buffer;
+    // Number of images read so far. Used in error messages.
+    private int count;
+
+    /*
+     * @param in        The channel to read images from.
+     * @param out       The channel to write images to.
+     */
+    public ImageStream(ReadableByteChannel in, WritableByteChannel out) {
+        this.in = in;
+        this.out = out;
+        this.buffer = ByteBuffer.allocate(BUFFER);
+        this.buffer.flip();
+    }
+
+    /*
+     * Reads the next image. Blocks until the whole image arrived.
+     *
+     * @return          The image, or null at the end of the stream.
+     * @throws          IOException if the image could not be read or is cut short.
+     */
+    public Image next() throws IOException {
+        if (!this.fill(1)) return null;
+        String name = "Image " + (++this.count);
+        Format format;
+        long length;
+
+        if (this.fill(PNG.length) && this.startsWith(PNG)) {
+            // Chunks follow the signature until the IEND chunk.
+            format = Format.PNG;
+            length = PNG.length;
+            while (length <= Integer.MAX_VALUE - 8) {
+                if (!this.fill(length + 8)) throw new IOException(name + " is cut short");
+                int size = this.peekInt(length);
+                int type = this.peekInt(length + 4);
+                length += 12 + (size & 0xFFFFFFFFL);
+                if (type == 0x49454E44) break;
+            }
+        } else if (this.fill(2) && this.peek(0) == 'P'
+                && (this.peek(1) == '6' || this.peek(1) == '7')) {
+            format = this.peek(1) == '6' ? Format.PPM : Format.PAM;
+            // The header is read until complete, as it has no fixed length.
+            while ((length = PortableImage.length(this.buffer, name)) < 0) {
+                if (!this.fill(this.buffer.remaining() + 1)) throw new IOException(name + " is cut short");
+            }
+        } else if (this.fill(RawImage.HEADER) && this.peekInt(0) == RawImage.MAGIC) {
+            format = Format.RAW;
+            length = RawImage.HEADER + (long) this.peekInt(4) * this.peekInt(8) * 4;
+        } else {
+            format = Format.OTHER;
+            while (this.fill(this.buffer.remaining() + 1));
+            length = this.buffer.remaining();
+        }
+        if (length > Integer.MAX_VALUE - 8) throw new IOException(name + " is too large to stream");
+        if (!this.fill(length)) throw new IOException(name + " is cut short");
+
+        // "fill" may have moved the unread bytes, so their position is only taken now.
+        int start = this.buffer.position();
+        ByteBuffer data = this.buffer.duplicate();
+        data.limit(start + (int) length);
+        int[][] pixels;
+        switch (format) {
+            case PPM:
+            case PAM:
+                pixels = PortableImage.read(data, name);
+                break;
+            case RAW:
+                int width = data.getInt(start + 4), height = data.getInt(start + 8);
+                pixels = new int[height][width];
+                for (int h = 0; h < height; h++) {
+                    data.position(start + RawImage.HEADER + h * width * 4);
+                    data.asIntBuffer().get(pixels[h]);
+                }
+                break;
+            default:
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                        this.buffer.array(), this.buffer.arrayOffset() + start, (int) length
+                ));
+                if (image == null) throw new IOException(name + " is not in a readable image format");
+                pixels = ImageFiles.pixels(image);
+        }
+        this.buffer.position(start + (int) length);
+        return new Image(pixels, format);
+    }
+
+    /*
+     * Writes an image and flushes it, so the next program in the pipeline can start on
+     * it right away. Images of format OTHER are written as PNG.
+     *
+     * @param image     Flattened image as an integer array. Each int represents an RGB pixel.
+     * @param width     The width of the image.
+     * @param height    The height of the image.
+     * @param format    The format to write the image in.
+     * @throws          IOException if the image could not be written.
+     */
+    public void write(int[] image, int width, int height, Format format) throws IOException {
+        ByteBuffer data;
+        switch (format) {
+            case PPM:
+            case PAM:
+                data = PortableImage.encode(image, width, height, format == Format.PAM);
+                break;
+            case RAW:
+                data = ByteBuffer.allocate(RawImage.HEADER + width * height * 4);
+                data.putInt(RawImage.MAGIC).putInt(width).putInt(height);
+                data.asIntBuffer().put(image, 0, width * height);
+                data.rewind();
+                break;
+            default:
+                // Not closed, as that would close the channel.
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(this.out), WRITE_BUFFER);
+                PngEncoder.write(image, width, height, false, PngEncoder.DEFAULT, out);
+                out.flush();
+                return;
+        }
+        while (data.hasRemaining()) this.out.write(data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+        this.out.close();
+    }
+
+    // Returns the unread byte at "offset" without reading it.
+    private byte peek(int offset) {
+        return this.buffer.get(this.buffer.position() + offset);
+    }
+
+    // Returns the unread big endian int at "offset" without reading it.
+    private int peekInt(long offset) {
+        return this.buffer.getInt(this.buffer.position() + (int) offset);
+    }
+
+    // Returns true if the unread bytes start with "prefix".
+    private boolean startsWith(byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (this.peek(i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /*
+     * Reads from the channel until at least "bytes" unread bytes are buffered. The
+     * buffer grows as needed and bytes already returned are dropped.
+     *
+     * @param bytes     Number of unread bytes needed.
+     * @return          False if the stream ended first.
+     */
+    private boolean fill(long bytes) throws IOException {
+        if (this.buffer.remaining() >= bytes) return true;
+        if (this.buffer.capacity() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate((int) Math.max(bytes, Math.min(this.buffer.capacity() * 2L, Integer.MAX_VALUE - 8)));
+            larger.put(this.buffer);
+            this.buffer = larger;
+        } else {
+            this.buffer.compact();
+        }
+        // The buffer is in write mode until the loop ends.
+        while (this.buffer.position() < bytes) {
+            if (this.in.read(this.buffer) < 0) break;
+        }
+        this.buffer.flip();
+        return this.buffer.remaining() >= bytes;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Karve
+ * Alex Eidt
+ * Headless builder API for embedding the Seam Carver in other programs.
+ * Carving raw pixel arrays and ".raw" files never loads AWT. Buffered Images
+ * are passed in with Karve.image(ImageFiles.pixels(image)), so that the public
+ * methods of this class (which the launcher loads for "main") do not refer to AWT.
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+public class Karve {
+
+    /*
+     * The carved image.
+     */
+    public static class Result {
+        // Flattened image where each int represents an RGB pixel.
+        public final int[] pixels;
+        // Dimensions of the image.
+        public final int width, height;
+
+        Result(int[] pixels, int width, int height) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+
+        /*
+         * Converts the carved image into a Buffered Image. Loads AWT.
+         *
+         * @return          The Buffered Image.
+         */
+        public BufferedImage toBufferedImage() {
+            return ImageFiles.toBufferedImage(this.pixels, this.width, this.height);
+        }
+
+        /*
+         * Writes the carved image to a file. Files ending in ".raw" are written as raw
+         * images and files ending in ".ppm" or ".pam" as PPM or PAM images without
+         * loading AWT, anything else is written as a PNG.
+         *
+         * @param file      The file to write.
+         * @throws          IOException if the file could not be written.
+         */
+        public void write(File file) throws IOException {
+            if (file.getName().endsWith(".raw")) {
+                RawImage.write(this.pixels, this.width, this.height, file);
+            } else if (PortableImage.isPortable(file)) {
+                PortableImage.write(this.pixels, this.width, this.height, file);
+            } else {
+                ImageFiles.writeImage(this.pixels, this.width, this.height, false, file.getPath());
+            }
+        }
+    }
+
+    // 2D image array where each int represents the RGB pixel.
+    private final int[][] image;
+    // The energy type to carve with.
+    private EnergyType type;
+    // Target width and height. -1 keeps the dimension as is.
+    private int targetWidth, targetHeight;
+    // If true, horizontal seams are carved before vertical ones.
+    private boolean horizontalFirst;
+    // Number of threads used for carving. 0 uses all CPU cores.
+    private int threads;
+    // Ranges of columns and rows that seams are restricted to as {start, end}. Null for none.
+    private int[] columns, rows;
+
+    private Karve(int[][] image) {
+        this.image = image;
+        this.type = EnergyType.BACKWARD;
+        this.targetWidth = -1;
+        this.targetHeight = -1;
+    }
+
+    /*
+     * Starts carving a flattened image.
+     *
+     * @param pixels    Flattened image where each int represents an RGB pixel.
+     * @param width     The width of the image.
+     * @param height    The height of the image.
+     * @return          The builder.
+     */
+    public static Karve image(int[] pixels, int width, int height) {
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Pixel array is smaller than " + width + " x " + height);
+        }
+        int[][] image = new int[height][width];
+        for (int h = 0; h < height; h++) {
+            System.arraycopy(pixels, h * width, image[h], 0, width);
+        }
+        return new Karve(image);
+    }
+
+    /*
+     * Starts carving a 2D image array. The array is not modified.
+     *
+     * @param image     2D image array where each int represents the RGB pixel.
+     * @return          The builder.
+     */
+    public static Karve image(int[][] image) {
+        return new Karve(Utils.copy(image));
+    }
+
+    /*
+     * Starts carving an image file. Raw, PPM and PAM images are memory mapped
+     * without loading AWT, anything else is read through ImageIO.
+     *
+     * @param file      The image file to carve.
+     * @return          The builder.
+     * @throws          IOException if the file could not be read.
+     */
+    public static Karve image(File file) throws IOException {
+        int[][] image = file.getName().endsWith(".raw")
+                ? RawImage.read(file)
+                : PortableImage.isPortable(file)
+                ? PortableImage.read(file)
+                : ImageFiles.readImage(file);
+        if (image == null) throw new IOException("Could not read " + file);
+        return new Karve(image);
+    }
+
+    public static Karve image(String filename) throws IOException {
+        return image(new File(filename));
+    }
+
+    /*
+     * @param type      The energy type to carve with. Backward by default.
+     * @return          The builder.
+     */
+    public Karve energy(EnergyType type) {
+        this.type = type;
+        return this;
+    }
+
+    /*
+     * Sets the size of the carved image. Smaller dimensions are carved by removing
+     * seams and larger ones by inserting seams. Images can be enlarged to any size,
+     * past twice their size in several rounds of seam insertion, but not carved below
+     * 2 pixels.
+     *
+     * @param width     Target width in pixels.
+     * @param height    Target height in pixels.
+     * @return          The builder.
+     */
+    public Karve size(int width, int height) {
+        return this.width(width).height(height);
+    }
+
+    /*
+     * @param width     Target width in pixels, carved with vertical seams. At least 2.
+     * @return          The builder.
+     */
+    public Karve width(int width) {
+        if (width < 2) throw new IllegalArgumentException("Width must be at least 2");
+        this.targetWidth = width;
+        return this;
+    }
+
+    /*
+     * @param height    Target height in pixels, carved with horizontal seams. At least 2.
+     * @return          The builder.
+     */
+    public Karve height(int height) {
+        if (height < 2) throw new IllegalArgumentException("Height must be at least 2");
+        this.targetHeight = height;
+        return this;
+    }
+
+    /*
+     * @param horizontalFirst   If true, carve horizontal seams before vertical seams
+     *                          when both dimensions change. False by default.
+     * @return                  The builder.
+     */
+    public Karve horizontalFirst(boolean horizontalFirst) {
+        this.horizontalFirst = horizontalFirst;
+        return this;
+    }
+
+    /*
+     * Restricts vertical seams to a range of columns. The rest of the image is not
+     * carved and the work done scales with the size of the range.
+     *
+     * @param start     First column of the range.
+     * @param end       End of the range, exclusive.
+     * @return          The builder.
+     */
+    public Karve columns(int start, int end) {
+        this.columns = new int[]{start, end};
+        return this;
+    }
+
+    /*
+     * Restricts horizontal seams to a range of rows. See "columns".
+     *
+     * @param start     First row of the range.
+     * @param end       End of the range, exclusive.
+     * @return          The builder.
+     */
+    public Karve rows(int start, int end) {
+        this.rows = new int[]{start, end};
+        return this;
+    }
+
+    /*
+     * @param threads   Number of threads used for carving. 0 uses all CPU cores.
+     * @return          The builder.
+     */
+    public Karve threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /*
+     * Carves the image on the calling thread.
+     *
+     * @return          The carved image.
+     * @throws          IllegalArgumentException if the image can not reach the target size,
+     *                  such as an image 2 pixels wide that should be enlarged.
+     */
+    public Result carve() {
+        int previous = Utils.setThreads(this.threads);
+        try {
+            int[][] image = this.image;
+            if (this.horizontalFirst) {
+                image = resize(image, true, this.targetHeight);
+                image = resize(image, false, this.targetWidth);
+            } else {
+                image = resize(image, false, this.targetWidth);
+                image = resize(image, true, this.targetHeight);
+            }
+            return new Result(Utils.flatten(image), image[0].length, image.length);
+        } finally {
+            Utils.setThreads(previous);
+        }
+    }
+
+    /*
+     * Carves the image on the given thread pool.
+     *
+     * @param pool      The thread pool to carve on.
+     * @return          The carved image once carving is done.
+     */
+    public Future<Result> submit(ExecutorService pool) {
+        return pool.submit(this::carve);
+    }
+
+    /*
+     * Carves one dimension of the image to the target size.
+     *
+     * @param image         2D image array where each int represents the RGB pixel.
+     * @param horizontal    If true, carve the height with horizontal seams.
+     * @param target        Target size in pixels. -1 keeps the size as is.
+     * @return              The carved image.
+     */
+    private int[][] resize(int[][] image, boolean horizontal, int target) {
+        int size = horizontal ? image.length : image[0].length;
+        if (target < 0 || target == size) return image;
+        int[] range = horizontal ? this.rows : this.columns;
+        if (range != null) {
+            int length = range[1] - range[0] + target - size;
+            return RegionCarver.carve(image, range[0], range[1], length, horizontal, this.type);
+        }
+        // Horizontal carvers mirror the image they are created from.
+        if (horizontal) image = Utils.copy(image);
+        SeamCarver carver = new SeamCarverFactory().create(image, horizontal, this.type);
+        if (target < size) {
+            carver.remove(size - target, false, 0);
+        } else {
+            // Each round inserts at most two seams fewer than the current size, so large
+            // targets take several rounds.
+            while (carver.getWidth() < target && carver.enlarge(target - carver.getWidth(), false, 0) > 0);
+        }
+        if (carver.getWidth() != target) {
+            throw new IllegalArgumentException("Could not carve " + size + " pixels to " + target);
+        }
+
+        int[] data = carver.getImage();
+        int width = carver.getWidth(), height = carver.getHeight();
+        if (!horizontal) {
+            int[][] result = new int[height][width];
+            for (int h = 0; h < height; h++) {
+                System.arraycopy(data, h * width, result[h], 0, width);
+            }
+            return result;
+        }
+        // Horizontal carvers hold the image transposed and mirrored.
+        int[][] result = new int[width][height];
+        for (int h = 0; h < height; h++) {
+            for (int w = 0; w < width; w++) {
+                result[w][height - 1 - h] = data[h * width + w];
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Carves an image file to the given size without loading AWT for ".raw" files.
+     * Usage: java Karve <input> <output> <width>x<height> [backward|forward] [threads]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || !args[2].matches("\\d+x\\d+")) {
+            System.out.println("Usage: java Karve <input> <output> <width>x<height> [backward|forward] [threads]");
+            return;
+        }
+        String[] size = args[2].split("x");
+        Result result;
+        try {
+            Karve karve = image(args[0]).size(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+            if (args.length > 3 && args[3].equalsIgnoreCase("forward")) {
+                karve.energy(EnergyType.FORWARD);
+            }
+            if (args.length > 4) {
+                karve.threads(Integer.parseInt(args[4]));
+            }
+            result = karve.carve();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        result.write(new File(args[1]));
+    }
+}
@@ -12,6 +12,10 @@ public class Main {
     public static void main(String... args) {
         File snapshotsDirectory = new File(SNAPSHOTS_DIR);
         snapshotsDirectory.mkdir();
+        // The first argument sets the memory budget of the open images in megabytes.
+        if (args.length > 0) {
+            GUI.WORKSPACE_BUDGET = Long.parseLong(args[0]) << 20;
+        }
         // Run the "Karve" GUI.
         new GUI();
     }
@@ -0,0 +1,121 @@
+/*
+ * MappedStore
+ * Alex Eidt
+ * A two dimensional int array stored in a memory mapped file.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Stores "height" rows of "stride" ints in a file that is memory mapped in bands
+ * of rows. None of the values live on the heap, so the size of the store is only
+ * limited by the disk.
+ */
+public class MappedStore implements Closeable {
+    // Maximum number of bytes mapped by a single band.
+    public static final int BAND_BYTES = 1 << 26;
+
+    // Number of rows.
+    private final int height;
+    // Number of ints in every row.
+    private final int stride;
+    // Number of rows in each band.
+    private final int rowsPerBand;
+    // The file backing the store.
+    private final File file;
+    private final FileChannel channel;
+    // The mapped bands of rows.
+    private final IntBuffer[] bands;
+
+    /*
+     * Creates a store backed by the given file. Existing contents of the file are kept.
+     *
+     * @param file      The file to store the values in.
+     * @param height    Number of rows.
+     * @param stride    Number of ints in every row.
+     * @throws          IOException if the file could not be mapped.
+     */
+    public MappedStore(File file, int height, int stride) throws IOException {
+        this.file = file;
+        this.height = height;
+        this.stride = stride;
+        this.rowsPerBand = Utils.max(BAND_BYTES / (stride * 4), 1);
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        int count = (height + this.rowsPerBand - 1) / this.rowsPerBand;
+        this.bands = new IntBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long rows = Utils.min(this.rowsPerBand, height - i * this.rowsPerBand);
+            this.bands[i] = this.channel
+                    .map(FileChannel.MapMode.READ_WRITE, (long) i * this.rowsPerBand * stride * 4, rows * stride * 4)
+                    .order(ByteOrder.BIG_ENDIAN)
+                    .asIntBuffer();
+        }
+    }
+
+    // Returns the number of rows.
+    public int getHeight() {
+        return this.height;
+    }
+
+    // Returns the number of ints in every row.
+    public int getStride() {
+        return this.stride;
+    }
+
+    // Returns the channel of the backing file.
+    public FileChannel getChannel() {
+        return this.channel;
+    }
+
+    // Returns the value at row "h" and column "w".
+    public int get(int h, int w) {
+        return this.bands[h / this.rowsPerBand].get((h % this.rowsPerBand) * this.stride + w);
+    }
+
+    // Sets the value at row "h" and column "w".
+    public void put(int h, int w, int value) {
+        this.bands[h / this.rowsPerBand].put((h % this.rowsPerBand) * this.stride + w, value);
+    }
+
+    /*
+     * Copies part of a row into the given array.
+     *
+     * @param h         The row to read.
+     * @param w         The first column to read.
+     * @param dst       The array to copy into.
+     * @param offset    The index in "dst" to copy to.
+     * @param length    The number of values to copy.
+     */
+    public void read(int h, int w, int[] dst, int offset, int length) {
+        IntBuffer band = this.bands[h / this.rowsPerBand].duplicate();
+        band.position((h % this.rowsPerBand) * this.stride + w);
+        band.get(dst, offset, length);
+    }
+
+    /*
+     * Copies the given array into part of a row.
+     *
+     * @param h         The row to write.
+     * @param w         The first column to write.
+     * @param src       The array to copy from.
+     * @param offset    The index in "src" to copy from.
+     * @param length    The number of values to copy.
+     */
+    public void write(int h, int w, int[] src, int offset, int length) {
+        IntBuffer band = this.bands[h / this.rowsPerBand].duplicate();
+        band.position((h % this.rowsPerBand) * this.stride + w);
+        band.put(src, offset, length);
+    }
+
+    // Closes and deletes the backing file.
+    public void close() throws IOException {
+        this.channel.close();
+        this.file.delete();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * MultiTargetCarver
+ * Alex Eidt
+ * Produces the same image at many sizes from a single carving run.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MultiTargetCarver {
+
+    /*
+     * Carves the image down to every target width in a single run. The carver works
+     * from the largest to the smallest target and captures a copy of the image at each
+     * one. The copies are encoded in the background while carving continues, so the
+     * total cost is about that of carving down to the smallest target.
+     *
+     * @param carver        The Seam Carver to carve.
+     * @param targets       Target widths (heights for horizontal carvers) in pixels.
+     * @param outputs       Output file name for each target.
+     * @param horizontal    If true, the carver carves horizontal seams.
+     * @return              The width each output was saved at, in the order of "targets".
+     */
+    public static int[] carve(SeamCarver carver, int[] targets, String[] outputs, boolean horizontal) {
+        Integer[] order = new Integer[targets.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(targets[b], targets[a]));
+
+        int[] widths = new int[targets.length];
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<?>> writes = new ArrayList<>(targets.length);
+        for (int i : order) {
+            carver.remove(carver.getWidth() - targets[i], false, 0);
+            int width = carver.getWidth(), height = carver.getHeight();
+            // The carver keeps reusing its image buffer, so save a copy of this checkpoint.
+            int[] image = Arrays.copyOf(carver.getImage(), width * height);
+            widths[i] = width;
+            String output = outputs[i];
+            writes.add(executor.submit(() -> Utils.writeImage(image, width, height, horizontal, output)));
+        }
+
+        try {
+            for (Future<?> write : writes) write.get();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to write carved image", e);
+        } finally {
+            executor.shutdown();
+        }
+        return widths;
+    }
+
+    /*
+     * Parses a comma separated list of target sizes. Each size is either a number of
+     * pixels, or a percentage of the given size if it ends with "%".
+     *
+     * @param list      The list of target sizes, e.g. "90%,75%,600".
+     * @param size      The size percentages refer to.
+     * @return          The target sizes in pixels.
+     */
+    public static int[] parseTargets(String list, int size) {
+        String[] parts = list.split(",");
+        int[] targets = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (part.endsWith("%")) {
+                double percent = Double.parseDouble(part.substring(0, part.length() - 1));
+                targets[i] = (int) Math.round(size * percent / 100);
+            } else {
+                targets[i] = Integer.parseInt(part);
+            }
+        }
+        return targets;
+    }
+}
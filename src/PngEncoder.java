@@ -0,0 +1,288 @@
+/*
+ * PngEncoder
+ * Alex Eidt
+ * Writes PNG images directly from int pixel arrays. Rows are split into strips
+ * which are filtered and compressed in parallel and stitched into one stream.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+public class PngEncoder {
+    // No compression. Rows are not filtered either. Fastest, for recording.
+    public static final int STORE = Deflater.NO_COMPRESSION;
+    // Fastest compression. Every row uses the same filter.
+    public static final int FAST = Deflater.BEST_SPEED;
+    // Balance of speed and size.
+    public static final int DEFAULT = 6;
+    // Smallest files.
+    public static final int BEST = Deflater.BEST_COMPRESSION;
+    // Approximate number of uncompressed bytes in each strip.
+    private static final int STRIP_BYTES = 1 << 18;
+    // Size of the deflate window. Each strip is primed with this much of the data before it.
+    private static final int WINDOW = 1 << 15;
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /*
+     * Writes the given image to a PNG file.
+     *
+     * @param pixels    Flattened image where each int represents an ARGB pixel.
+     * @param width     The width of the image.
+     * @param height    The height of the image.
+     * @param alpha     If true, keep the alpha channel, otherwise write RGB only.
+     * @param level     Compression level from STORE (0) to BEST (9).
+     * @param file      The file to write.
+     * @throws          IOException if the file could not be written.
+     */
+    public static void write(int[] pixels, int width, int height, boolean alpha, int level, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            write(pixels, width, height, alpha, level, out);
+        }
+    }
+
+    /*
+     * Writes the given image as a PNG to a stream. See "write" above.
+     */
+    public static void write(int[] pixels, int width, int height, boolean alpha, int level, OutputStream out) throws IOException {
+        if (level < STORE || level > BEST) throw new IllegalArgumentException("Invalid compression level " + level);
+        int channels = alpha ? 4 : 3;
+        int rowBytes = 1 + width * channels;
+        int rowsPerStrip = Utils.max(STRIP_BYTES / rowBytes, 1);
+        int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+
+        // Filter and compress every strip independently.
+        byte[][] compressed = new byte[strips][];
+        long[] checksums = new long[strips];
+        Utils.parallel((cpu, cpus) -> {
+            for (int i = cpu; i < strips; i += cpus) {
+                int start = i * rowsPerStrip, end = Utils.min(start + rowsPerStrip, height);
+                byte[] data = filter(pixels, width, channels, level, start, end);
+                Adler32 adler = new Adler32();
+                adler.update(data, 0, data.length);
+                checksums[i] = adler.getValue();
+
+                // Prime the compressor with the end of the previous strip so matches can
+                // reach across the strip boundary just like in a single stream.
+                byte[] dictionary = null;
+                if (start > 0 && level != STORE) {
+                    int rows = Utils.min((WINDOW + rowBytes - 1) / rowBytes, start);
+                    dictionary = filter(pixels, width, channels, level, start - rows, start);
+                }
+                compressed[i] = deflate(data, dictionary, level, i == strips - 1);
+            }
+        });
+
+        // Combine the checksums of the strips into the checksum of the whole stream.
+        long adler = 1;
+        for (int i = 0; i < strips; i++) {
+            int rows = Utils.min(rowsPerStrip, height - i * rowsPerStrip);
+            adler = combine(adler, checksums[i], (long) rows * rowBytes);
+        }
+
+        out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        writeInt(header, width);
+        writeInt(header, height);
+        header.write(8);                // Bit depth.
+        header.write(alpha ? 6 : 2);    // Color type: RGBA or RGB.
+        header.write(0);                // Compression method.
+        header.write(0);                // Filter method.
+        header.write(0);                // No interlacing.
+        chunk(out, "IHDR", header.toByteArray(), 0, header.size());
+
+        // zlib header for a 32K window, followed by one IDAT chunk per strip.
+        int flags = level == STORE || level == FAST ? 0x01 : level < BEST ? 0x9C : 0xDA;
+        chunk(out, "IDAT", new byte[]{0x78, (byte) flags}, 0, 2);
+        for (byte[] strip : compressed) {
+            chunk(out, "IDAT", strip, 0, strip.length);
+        }
+        byte[] trailer = {(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler};
+        chunk(out, "IDAT", trailer, 0, 4);
+        chunk(out, "IEND", new byte[0], 0, 0);
+    }
+
+    /*
+     * Converts rows of the image into filtered PNG scanlines. Each row uses the filter
+     * that gives the smallest sum of absolute differences. Stored images are not filtered
+     * and the fast level always uses the Sub filter.
+     *
+     * @param pixels    Flattened image where each int represents an ARGB pixel.
+     * @param width     The width of the image.
+     * @param channels  3 for RGB, 4 for RGBA.
+     * @param level     Compression level.
+     * @param start     First row.
+     * @param end       End row, exclusive.
+     * @return          The filtered scanlines, each starting with its filter type.
+     */
+    private static byte[] filter(int[] pixels, int width, int channels, int level, int start, int end) {
+        int length = width * channels;
+        byte[] data = new byte[(end - start) * (length + 1)];
+        byte[] previous = new byte[length], current = new byte[length];
+        if (start > 0) unpack(pixels, width, channels, start - 1, previous);
+        byte[][] candidates = new byte[5][length];
+        int offset = 0;
+        for (int y = start; y < end; y++) {
+            unpack(pixels, width, channels, y, current);
+            int type = 0;
+            if (level == FAST) {
+                // The Sub filter alone is much cheaper than trying every filter.
+                type = 1;
+                apply(type, current, previous, channels, candidates[type]);
+            } else if (level != STORE) {
+                long best = Long.MAX_VALUE;
+                for (int filter = 0; filter < 5; filter++) {
+                    long sum = apply(filter, current, previous, channels, candidates[filter]);
+                    if (sum < best) {
+                        best = sum;
+                        type = filter;
+                    }
+                }
+            } else {
+                System.arraycopy(current, 0, candidates[0], 0, length);
+            }
+            data[offset++] = (byte) type;
+            System.arraycopy(candidates[type], 0, data, offset, length);
+            offset += length;
+            byte[] temp = previous;
+            previous = current;
+            current = temp;
+        }
+        return data;
+    }
+
+    // Writes the bytes of one row of the image into "row".
+    private static void unpack(int[] pixels, int width, int channels, int y, byte[] row) {
+        int index = y * width;
+        for (int x = 0, i = 0; x < width; x++) {
+            int pixel = pixels[index + x];
+            row[i++] = (byte) (pixel >> 16);
+            row[i++] = (byte) (pixel >> 8);
+            row[i++] = (byte) pixel;
+            if (channels == 4) row[i++] = (byte) (pixel >>> 24);
+        }
+    }
+
+    /*
+     * Applies a PNG filter to a row.
+     *
+     * @param filter    0 None, 1 Sub, 2 Up, 3 Average, 4 Paeth.
+     * @param row       The row to filter.
+     * @param above     The row above it. All zeros for the first row.
+     * @param bpp       Bytes per pixel.
+     * @param out       The filtered row.
+     * @return          Sum of the absolute values of the filtered bytes.
+     */
+    private static long apply(int filter, byte[] row, byte[] above, int bpp, byte[] out) {
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = above[i] & 0xFF;
+            int c = i >= bpp ? above[i - bpp] & 0xFF : 0;
+            int value;
+            switch (filter) {
+                case 1: value = x - a; break;
+                case 2: value = x - b; break;
+                case 3: value = x - ((a + b) >> 1); break;
+                case 4: value = x - paeth(a, b, c); break;
+                default: value = x;
+            }
+            out[i] = (byte) value;
+            sum += Math.abs((byte) value);
+        }
+        return sum;
+    }
+
+    // The Paeth predictor from the PNG specification.
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    /*
+     * Compresses one strip into raw deflate blocks. Every strip but the last ends on a
+     * byte boundary with a sync flush, so the strips can simply be concatenated.
+     *
+     * @param data          The filtered scanlines of the strip.
+     * @param dictionary    The data before the strip, or null for the first strip.
+     * @param level         Compression level.
+     * @param last          If true, the strip ends the stream.
+     * @return              The compressed strip.
+     */
+    private static byte[] deflate(byte[] data, byte[] dictionary, int level, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        if (dictionary != null) {
+            int length = Utils.min(dictionary.length, WINDOW);
+            deflater.setDictionary(dictionary, dictionary.length - length, length);
+        }
+        deflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(level == STORE ? data.length + 1024 : data.length / 2 + 64);
+        byte[] buffer = new byte[1 << 16];
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } else {
+            int count;
+            do {
+                count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, count);
+            } while (count == buffer.length);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /*
+     * Combines the Adler-32 checksums of two consecutive pieces of data, as in zlib's
+     * adler32_combine.
+     *
+     * @param first     Checksum of the first piece.
+     * @param second    Checksum of the second piece.
+     * @param length    Length of the second piece.
+     * @return          Checksum of both pieces together.
+     */
+    private static long combine(long first, long second, long length) {
+        final long base = 65521;
+        long remainder = length % base;
+        long sum1 = first & 0xFFFF;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (second & 0xFFFF) + base - 1;
+        sum2 += ((first >>> 16) & 0xFFFF) + ((second >>> 16) & 0xFFFF) + base - remainder;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    // Writes a PNG chunk with its length and CRC.
+    private static void chunk(OutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, offset, length);
+        writeInt(out, length);
+        out.write(name);
+        out.write(data, offset, length);
+        writeInt(out, (int) crc.getValue());
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
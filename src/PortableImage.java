@@ -0,0 +1,341 @@
+/*
+ * PortableImage
+ * Alex Eidt
+ * Reads and writes binary PPM (P6) and PAM (P7) images. The pixels are memory
+ * mapped and packed into or out of the pixel arrays in parallel, so loading and
+ * saving runs close to the speed of a copy. Does not load AWT.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+public class PortableImage {
+    // Maximum number of bytes mapped at once. Larger images are mapped in bands of rows.
+    private static final long REGION = 1 << 30;
+    // Maximum size of the header, including comments.
+    static final int HEADER = 4096;
+
+    /*
+     * The header of a PPM or PAM image.
+     */
+    private static class Header {
+        // Dimensions of the image.
+        int width, height;
+        // Samples per pixel: 1 gray, 2 gray and alpha, 3 RGB, 4 RGB and alpha.
+        int depth;
+        // Largest sample value. Samples take two bytes if it is larger than 255.
+        int maxval;
+        // Position of the first pixel relative to the start of the header.
+        int offset;
+
+        // Returns the number of bytes in a row of pixels.
+        int rowBytes() {
+            return this.width * this.depth * (this.maxval > 255 ? 2 : 1);
+        }
+    }
+
+    /*
+     * Reads header values one at a time. Running out of bytes is recorded rather than
+     * treated as an error, so that a header arriving in pieces can be parsed again.
+     */
+    private static class Parser {
+        final ByteBuffer head;
+        final String name;
+        // True once the end of the buffer was reached in the middle of the header.
+        boolean incomplete;
+
+        Parser(ByteBuffer head, String name) {
+            this.head = head;
+            this.name = name;
+        }
+
+        // Reads the next whitespace separated value, skipping comments. The buffer is
+        // left on the whitespace character following the value.
+        String token() {
+            StringBuilder token = new StringBuilder();
+            while (this.head.hasRemaining()) {
+                char c = (char) this.head.get(this.head.position());
+                if (c == '#' && token.length() == 0) {
+                    while (this.head.hasRemaining() && this.head.get() != '\n');
+                } else if (Character.isWhitespace(c)) {
+                    if (token.length() > 0) return token.toString();
+                    this.head.get();
+                } else {
+                    token.append(c);
+                    this.head.get();
+                }
+            }
+            this.incomplete = true;
+            return "";
+        }
+
+        // Reads the next value as a number.
+        int number() throws IOException {
+            String token = this.token();
+            if (this.incomplete) return 0;
+            try {
+                return Integer.parseInt(token);
+            } catch (NumberFormatException e) {
+                throw new IOException(this.name + " has an invalid header value " + token);
+            }
+        }
+    }
+
+    /*
+     * @param file      The image file.
+     * @return          True if the file is a PPM or PAM image, judging by its extension.
+     */
+    public static boolean isPortable(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".ppm") || name.endsWith(".pam") || name.endsWith(".pnm");
+    }
+
+    /*
+     * Reads a PPM or PAM image into a 2D Integer array, where each int represents an
+     * RGB pixel. Gray images are expanded to RGB and samples larger than 8 bits are
+     * scaled down. The alpha channel of PAM images is kept, all other pixels are opaque.
+     *
+     * @param file      The image file.
+     * @return          2D Integer array.
+     * @throws          IOException if the file is not a binary PPM or PAM image.
+     */
+    public static int[][] read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(channel.size(), HEADER));
+            while (head.hasRemaining() && channel.read(head) >= 0);
+            head.flip();
+            Header header = header(head, file.getName());
+            if (header == null) throw new IOException(file.getName() + " has no complete header");
+
+            int height = header.height, rowBytes = header.rowBytes();
+            if (header.offset + (long) rowBytes * height > channel.size()) {
+                throw new IOException(file.getName() + " is cut short");
+            }
+            int[][] pixels = new int[height][header.width];
+            int band = (int) Math.max(1, Math.min(height, REGION / Math.max(rowBytes, 1)));
+            for (int start = 0; start < height; start += band) {
+                int first = start, last = Utils.min(start + band, height);
+                MappedByteBuffer region = channel.map(
+                        FileChannel.MapMode.READ_ONLY,
+                        header.offset + (long) first * rowBytes,
+                        (long) (last - first) * rowBytes
+                );
+                decode(region, header, pixels, first, last);
+            }
+            return pixels;
+        }
+    }
+
+    /*
+     * Reads a PPM or PAM image from a buffer. See "read".
+     *
+     * @param data      The encoded image, starting at the position of the buffer.
+     * @param name      Name of the image for error messages.
+     * @return          2D Integer array.
+     * @throws          IOException if the buffer does not hold a complete PPM or PAM image.
+     */
+    public static int[][] read(ByteBuffer data, String name) throws IOException {
+        ByteBuffer head = data.duplicate();
+        Header header = header(head, name);
+        if (header == null) throw new IOException(name + " has no complete header");
+        if (header.offset + (long) header.rowBytes() * header.height > data.remaining()) {
+            throw new IOException(name + " is cut short");
+        }
+        ByteBuffer region = data.duplicate();
+        region.position(data.position() + header.offset);
+        int[][] pixels = new int[header.height][header.width];
+        decode(region.slice(), header, pixels, 0, header.height);
+        return pixels;
+    }
+
+    /*
+     * Finds the size of a PPM or PAM image from its header, so that images can be told
+     * apart in a stream of several.
+     *
+     * @param data      The start of the encoded image, from the position of the buffer.
+     * @param name      Name of the image for error messages.
+     * @return          The size of the image in bytes, or -1 if the buffer does not hold
+     *                  the complete header yet.
+     * @throws          IOException if the header is invalid.
+     */
+    static long length(ByteBuffer data, String name) throws IOException {
+        Header header = header(data.duplicate(), name);
+        if (header == null) return -1;
+        return header.offset + (long) header.rowBytes() * header.height;
+    }
+
+    /*
+     * Writes the given integer array to a binary PPM image, or to a PAM image if the
+     * file name ends with ".pam". Both store 8 bit RGB without the alpha channel.
+     *
+     * @param image     Flattened image as an integer array. Each int represents an RGB pixel.
+     * @param width     The width of the image.
+     * @param height    The height of the image.
+     * @param file      The image file.
+     * @throws          IOException if the file could not be written.
+     */
+    public static void write(int[] image, int width, int height, File file) throws IOException {
+        byte[] header = header(width, height, file.getName().toLowerCase().endsWith(".pam"));
+        int rowBytes = width * 3;
+        int band = (int) Math.max(1, Math.min(height, REGION / Math.max(rowBytes, 1)));
+
+        file.delete();
+        try (FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        )) {
+            ByteBuffer head = ByteBuffer.wrap(header);
+            while (head.hasRemaining()) channel.write(head);
+            for (int start = 0; start < height; start += band) {
+                int first = start, last = Utils.min(start + band, height);
+                MappedByteBuffer region = channel.map(
+                        FileChannel.MapMode.READ_WRITE,
+                        header.length + (long) first * rowBytes,
+                        (long) (last - first) * rowBytes
+                );
+                encode(region, image, width, first, last);
+            }
+        }
+    }
+
+    /*
+     * Encodes the given integer array as a PPM or PAM image in memory. See "write".
+     *
+     * @param image     Flattened image as an integer array. Each int represents an RGB pixel.
+     * @param width     The width of the image.
+     * @param height    The height of the image.
+     * @param pam       If true, the image is encoded as PAM, otherwise as PPM.
+     * @return          The encoded image, ready to be read.
+     */
+    public static ByteBuffer encode(int[] image, int width, int height, boolean pam) {
+        byte[] header = header(width, height, pam);
+        ByteBuffer data = ByteBuffer.allocate(header.length + width * height * 3);
+        data.put(header);
+        encode(data.slice(), image, width, 0, height);
+        data.rewind();
+        return data;
+    }
+
+    // Unpacks rows "first" to "last" of the image from a region starting at row "first".
+    private static void decode(ByteBuffer region, Header header, int[][] pixels, int first, int last) {
+        int width = header.width, depth = header.depth, maxval = header.maxval;
+        int sample = maxval > 255 ? 2 : 1;
+        int rowBytes = header.rowBytes();
+        Utils.parallel((cpu, cpus) -> {
+            ByteBuffer view = region.duplicate();
+            byte[] row = new byte[rowBytes];
+            for (int h = first + cpu; h < last; h += cpus) {
+                view.position((h - first) * rowBytes);
+                view.get(row);
+                int[] pixelRow = pixels[h];
+                for (int w = 0, i = 0; w < width; w++) {
+                    int a = 255, r, g, b;
+                    if (depth < 3) {
+                        r = g = b = sample(row, i, sample, maxval);
+                        i += sample;
+                    } else {
+                        r = sample(row, i, sample, maxval);
+                        g = sample(row, i + sample, sample, maxval);
+                        b = sample(row, i + 2 * sample, sample, maxval);
+                        i += 3 * sample;
+                    }
+                    if (depth == 2 || depth == 4) {
+                        a = sample(row, i, sample, maxval);
+                        i += sample;
+                    }
+                    pixelRow[w] = (a << 24) | (r << 16) | (g << 8) | b;
+                }
+            }
+        });
+    }
+
+    // Packs rows "first" to "last" of the image as 8 bit RGB into a region starting at row "first".
+    private static void encode(ByteBuffer region, int[] image, int width, int first, int last) {
+        int rowBytes = width * 3;
+        Utils.parallel((cpu, cpus) -> {
+            ByteBuffer view = region.duplicate();
+            byte[] row = new byte[rowBytes];
+            for (int h = first + cpu; h < last; h += cpus) {
+                for (int w = 0, i = 0, index = h * width; w < width; w++, index++) {
+                    int pixel = image[index];
+                    row[i++] = (byte) (pixel >> 16);
+                    row[i++] = (byte) (pixel >> 8);
+                    row[i++] = (byte) pixel;
+                }
+                view.position((h - first) * rowBytes);
+                view.put(row);
+            }
+        });
+    }
+
+    // Reads a sample of one or two bytes and scales it to 0 - 255.
+    private static int sample(byte[] row, int i, int bytes, int maxval) {
+        int value = bytes == 1 ? row[i] & 0xFF : ((row[i] & 0xFF) << 8) | (row[i + 1] & 0xFF);
+        return maxval == 255 ? value : Utils.min((value * 255 + maxval / 2) / maxval, 255);
+    }
+
+    // Returns the header of an 8 bit RGB image.
+    private static byte[] header(int width, int height, boolean pam) {
+        String text = pam
+                ? "P7\nWIDTH " + width + "\nHEIGHT " + height + "\nDEPTH 3\nMAXVAL 255\nTUPLTYPE RGB\nENDHDR\n"
+                : "P6\n" + width + " " + height + "\n255\n";
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Parses the header of a PPM or PAM image. Returns null if the buffer ends before the header does.
+    private static Header header(ByteBuffer head, String name) throws IOException {
+        int start = head.position();
+        Parser parser = new Parser(head, name);
+        Header header = new Header();
+        String magic = parser.token();
+        if (parser.incomplete) return null;
+        if ("P6".equals(magic)) {
+            header.width = parser.number();
+            header.height = parser.number();
+            header.maxval = parser.number();
+            header.depth = 3;
+        } else if ("P7".equals(magic)) {
+            for (String key = parser.token(); !parser.incomplete && !"ENDHDR".equals(key); key = parser.token()) {
+                switch (key) {
+                    case "WIDTH":
+                        header.width = parser.number();
+                        break;
+                    case "HEIGHT":
+                        header.height = parser.number();
+                        break;
+                    case "DEPTH":
+                        header.depth = parser.number();
+                        break;
+                    case "MAXVAL":
+                        header.maxval = parser.number();
+                        break;
+                    case "TUPLTYPE":
+                        parser.token();
+                        break;
+                    default:
+                        throw new IOException(name + " has an unknown header field " + key);
+                }
+            }
+        } else {
+            throw new IOException(name + " is not a binary PPM or PAM image");
+        }
+        if (parser.incomplete) {
+            if (head.limit() - start >= HEADER) throw new IOException(name + " has a header that is too long");
+            return null;
+        }
+        // A single whitespace character separates the header from the pixels.
+        header.offset = head.position() + 1 - start;
+        if (header.width <= 0 || header.height <= 0 || header.depth < 1 || header.depth > 4
+                || header.maxval < 1 || header.maxval > 65535) {
+            throw new IOException(name + " has an invalid header");
+        }
+        return header;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * ProgressListener
+ * Alex Eidt
+ */
+
+/*
+ * Receives progress updates from long running tasks, such as building a Seam Carver.
+ * A listener may throw an unchecked exception to abort the task.
+ */
+public interface ProgressListener {
+    // Listener that ignores all progress.
+    ProgressListener NONE = (phase, done, total) -> {};
+
+    /*
+     * Called whenever the task completes a step.
+     *
+     * @param phase     Name of the step that was completed.
+     * @param done      Number of completed steps.
+     * @param total     Total number of steps.
+     */
+    void progress(String phase, int done, int total);
+
+    /*
+     * Called after each seam of a carve.
+     *
+     * @param done      Number of seams carved so far.
+     * @param total     Number of seams requested.
+     * @param remaining Estimated time remaining in milliseconds.
+     */
+    default void seams(int done, int total, long remaining) {
+        this.progress("Carving", done, total);
+    }
+}
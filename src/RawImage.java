@@ -0,0 +1,116 @@
+/*
+ * RawImage
+ * Alex Eidt
+ * Reads and writes images in a raw, uncompressed format that can be memory
+ * mapped. The file holds a header ("KRAW", width, height) followed by every
+ * pixel as a big endian ARGB int, row by row.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class RawImage {
+    // Magic number at the start of every raw image ("KRAW").
+    public static final int MAGIC = 0x4B524157;
+    // Size of the header in bytes.
+    public static final int HEADER = 12;
+
+    /*
+     * Reads the dimensions of a raw image.
+     *
+     * @param file      The raw image file.
+     * @return          The width and height of the image.
+     * @throws          IOException if the file is not a raw image.
+     */
+    public static int[] dimensions(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header) >= 0);
+            header.flip();
+            if (header.remaining() < HEADER || header.getInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a raw image");
+            }
+            return new int[] {header.getInt(), header.getInt()};
+        }
+    }
+
+    /*
+     * Writes the raw image header at the current position of the channel.
+     *
+     * @param channel   The channel to write to.
+     * @param width     The width of the image.
+     * @param height    The height of the image.
+     * @throws          IOException if the header could not be written.
+     */
+    public static void writeHeader(FileChannel channel, int width, int height) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putInt(width).putInt(height).flip();
+        while (header.hasRemaining()) channel.write(header);
+    }
+
+    /*
+     * Reads a raw image into a 2D Integer array, where each int represents an RGB pixel.
+     *
+     * @param file      The raw image file.
+     * @return          2D Integer array.
+     * @throws          IOException if the file could not be read.
+     */
+    public static int[][] read(File file) throws IOException {
+        int[] dimensions = dimensions(file);
+        int width = dimensions[0], height = dimensions[1];
+        int[][] pixels = new int[height][width];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            IntBuffer buffer = channel
+                    .map(FileChannel.MapMode.READ_ONLY, HEADER, (long) width * height * 4)
+                    .asIntBuffer();
+            for (int h = 0; h < height; h++) {
+                buffer.get(pixels[h]);
+            }
+        }
+        return pixels;
+    }
+
+    /*
+     * Writes the given integer array to a raw image.
+     *
+     * @param image     Flattened image as an integer array. Each int represents an RGB pixel.
+     * @param width     The width of the image.
+     * @param height    The height of the image.
+     * @param file      The raw image file.
+     * @throws          IOException if the file could not be written.
+     */
+    public static void write(int[] image, int width, int height, File file) throws IOException {
+        file.delete();
+        try (FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        )) {
+            writeHeader(channel, width, height);
+            channel
+                    .map(FileChannel.MapMode.READ_WRITE, HEADER, (long) width * height * 4)
+                    .asIntBuffer()
+                    .put(image, 0, width * height);
+        }
+    }
+
+    /*
+     * Converts between raw, PPM and PAM images and any format ImageIO can read.
+     * Usage: java RawImage <input> <output>
+     * The output is written as a raw, PPM or PAM image by its extension, otherwise as a PNG.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java RawImage <input> <output>");
+            return;
+        }
+        int[][] image = Utils.readImage(args[0]);
+        if (image == null) throw new IOException("Could not read " + args[0]);
+        Utils.writeImage(Utils.flatten(image), image[0].length, image.length, false, args[1]);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * RegionCarver
+ * Alex Eidt
+ * Carves only a region of interest of the image. Vertical seams stay within a
+ * range of columns and horizontal seams within a range of rows, while the rest
+ * of the image is copied over untouched.
+ */
+
+public class RegionCarver {
+    // Default number of pixels on each side of the region that give the carver context.
+    public static final int BORDER = 8;
+
+    /*
+     * Resizes a range of columns (rows for horizontal seams) of the image to the given
+     * size. Only the range and a protected border around it are handed to the Seam
+     * Carver, so the energy, energy map and compaction work scales with the size of the
+     * range rather than the size of the image. Everything outside the range is copied
+     * once when the carved range is stitched back in.
+     *
+     * @param image         2D image array where each int represents the RGB pixel.
+     * @param start         First column (row for horizontal seams) of the range.
+     * @param end           End of the range, exclusive.
+     * @param size          The size of the range after carving. Smaller sizes remove
+     *                      seams, larger sizes insert them.
+     * @param horizontal    If true, carve horizontal seams within a range of rows.
+     * @param type          The energy type to carve with.
+     * @return              The carved image. "image" is not modified.
+     */
+    public static int[][] carve(int[][] image, int start, int end, int size, boolean horizontal, EnergyType type) {
+        int length = horizontal ? image.length : image[0].length;
+        if (start < 0 || end > length || end - start < 2) {
+            throw new IllegalArgumentException("Invalid region " + start + " - " + end);
+        }
+        if (size < 1) throw new IllegalArgumentException("Region size must be positive");
+        int across = horizontal ? image[0].length : image.length;
+
+        // Copy the range and its border into the orientation of a vertical carver.
+        int left = Utils.max(start - BORDER, 0), right = Utils.min(end + BORDER, length);
+        int[][] band = new int[across][right - left];
+        for (int h = 0; h < across; h++) {
+            for (int w = left; w < right; w++) {
+                band[h][w - left] = horizontal ? image[w][h] : image[h][w];
+            }
+        }
+        int before = start - left, after = right - end;
+
+        SeamCarver carver = new SeamCarverFactory().create(band, false, type);
+        carver.loadMask(guard(across, right - left, before, after));
+        int count = end - start - size;
+        if (count > 0) {
+            carver.remove(count, false, 0);
+        }
+        while (count < 0) {
+            // Enlarging first removes the seams it inserts, so each round inserts fewer
+            // seams than the range is wide to keep them all out of the protected border.
+            int width = carver.getWidth();
+            carver.loadMask(guard(across, width, before, after));
+            int inserted = carver.enlarge(Utils.min(-count, width - before - after - 1), false, 0);
+            if (inserted <= 0) break;
+            count += inserted;
+        }
+        int[] data = carver.getImage();
+        int carverWidth = carver.getWidth();
+        int carved = carverWidth - before - after;
+        if (carved != size) {
+            throw new IllegalStateException("Could only carve the region to " + carved + " instead of " + size);
+        }
+
+        // Stitch the carved range between the untouched parts of the image.
+        int total = length - (end - start) + carved;
+        int[][] result = horizontal ? new int[total][across] : new int[across][total];
+        Utils.parallel((cpu, cpus) -> {
+            for (int h = cpu; h < across; h += cpus) {
+                int offset = h * carverWidth + before;
+                if (horizontal) {
+                    for (int w = 0; w < start; w++) result[w][h] = image[w][h];
+                    for (int w = 0; w < carved; w++) result[start + w][h] = data[offset + w];
+                    for (int w = end; w < length; w++) result[w - end + start + carved][h] = image[w][h];
+                } else {
+                    System.arraycopy(image[h], 0, result[h], 0, start);
+                    System.arraycopy(data, offset, result[h], start, carved);
+                    System.arraycopy(image[h], end, result[h], start + carved, length - end);
+                }
+            }
+        });
+        return result;
+    }
+
+    /*
+     * Returns a mask that protects the border on both sides of the range.
+     *
+     * @param height    The height of the band.
+     * @param width     The width of the band.
+     * @param before    Width of the border before the range.
+     * @param after     Width of the border after the range.
+     * @return          The mask.
+     */
+    private static int[][] guard(int height, int width, int before, int after) {
+        int[][] mask = new int[height][width];
+        for (int h = 0; h < height; h++) {
+            for (int w = 0; w < before; w++) mask[h][w] = SeamCarver.MASK_PROTECT;
+            for (int w = width - after; w < width; w++) mask[h][w] = SeamCarver.MASK_PROTECT;
+        }
+        return mask;
+    }
+
+    /*
+     * Resizes a region of an image and saves the result.
+     * Usage: java RegionCarver <image> <output> <start> <end> <size> [horizontal] [backward|forward]
+     */
+    public static void main(String[] args) {
+        if (args.length < 5) {
+            System.out.println("Usage: java RegionCarver <image> <output> <start> <end> <size> [horizontal] [backward|forward]");
+            return;
+        }
+        int[][] image = Utils.readImage(args[0]);
+        boolean horizontal = args.length > 5 && args[5].equalsIgnoreCase("horizontal");
+        EnergyType type = args.length > 6 && args[6].equalsIgnoreCase("forward")
+                ? EnergyType.FORWARD
+                : EnergyType.BACKWARD;
+        int[][] result = carve(
+            image,
+            Integer.parseInt(args[2]),
+            Integer.parseInt(args[3]),
+            Integer.parseInt(args[4]),
+            horizontal,
+            type
+        );
+        Utils.writeImage(Utils.flatten(result), result[0].length, result.length, false, args[1]);
+    }
+}
@@ -3,15 +3,40 @@
  * Alex Eidt
  */
 
+import java.io.File;
+import java.io.IOException;
+
 public interface SeamCarver {
+    // Mask values used to mark pixels for removal or protection.
+    int MASK_NONE = 0;
+    int MASK_REMOVE = 1;
+    int MASK_PROTECT = 2;
+
     int getWidth();
     int getHeight();
     int[] getImage();
+    int[] getDirtyRegion();
     void setUpdate(boolean update);
     void setEnergy(int x, int y, int val);
+    void setMask(int x, int y, int val);
+    void fillMask(int x, int y, int width, int height, int val);
+    void paintMask(int x, int y, int width, int height, int val, int color);
+    void loadMask(int[][] mask);
+    int[][] getMask();
+    int erase(boolean highlight, int color);
     int add(int count, boolean highlight, int color);
+    int add(int count, boolean highlight, int color, ProgressListener listener, CancellationToken token);
     boolean add(boolean highlight, int color);
     int remove(int count, boolean highlight, int color);
+    int remove(int count, boolean highlight, int color, ProgressListener listener, CancellationToken token);
     boolean remove(boolean highlight, int color);
+    boolean remove(boolean highlight, int color, int beam);
+    int remove(int count, boolean highlight, int color, int beam);
+    long[] compareSeams(int beam);
+    boolean prepare(CancellationToken token);
+    boolean remove(int[] guide, int radius, boolean highlight, int color);
+    int[] getSeam();
+    int enlarge(int count, boolean highlight, int color);
     void updateImage(boolean highlight, int color);
+    void save(File file) throws IOException;
 }
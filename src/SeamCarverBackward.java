@@ -3,51 +3,129 @@
  * Alex Eidt
  */
 
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /*
  * Implements the Seam Carving algorithm using backward energy.
  */
 public class SeamCarverBackward extends SeamCarverBase implements SeamCarver {
+    // Number of rows the pipelined carve hands from compaction to the energy map at once.
+    private static final int BAND = 32;
 
     public SeamCarverBackward(int[][] image) {
-        super(image);
-        this.energy = Utils.sobel(image);
-        this.energyMap();
+        this(image, ProgressListener.NONE);
     }
 
-    public boolean add(boolean highlight, int color) {
-        boolean valid = super.add(highlight, color);
-        if (valid) this.energyMap();
-        return valid;
+    public SeamCarverBackward(int[][] image, ProgressListener listener) {
+        super(image, listener);
+        this.energy = Utils.sobel(image);
+        listener.progress("Computing energy", 2, BUILD_STEPS);
+        this.energyMap();
+        listener.progress("Building energy map", 3, BUILD_STEPS);
     }
 
-    public boolean remove(boolean highlight, int color) {
-        boolean valid = super.remove(highlight, color);
-        if (valid) this.energyMap();
-        return valid;
+    // Resumes a Seam Carver from a checkpoint. See Checkpoint.load.
+    SeamCarverBackward(Checkpoint checkpoint) throws IOException {
+        super(checkpoint);
     }
 
     /*
      * Creates the energy map from the gradient image.
      * Learn more: https://www.youtube.com/watch?v=rpB6zQNsbQU
      */
-    private void energyMap() {
+    protected void energyMap() {
         // Create Energy Map to find least paths through the image.
         // Copy last row of image into energy map.
-        for (int w = 0; w < this.width; w++) {
-            this.map[this.height - 1][w] = this.energy.get(this.height - 1).get(w);
+        int last = this.height - 1;
+        this.mapRow(last, this.start(last), this.end(last), 0, 0);
+        // Create energy map. Only the columns inside the search window are
+        // considered, anything outside of it counts as unreachable.
+        for (int h = last - 1; h >= 0; h--) {
+            if (this.cancelled(h)) return;
+            this.mapRow(h, this.start(h), this.end(h), this.start(h + 1), this.end(h + 1));
+        }
+    }
+
+    /*
+     * Fills in one row of the energy map from the row below it.
+     *
+     * @param h         The row.
+     * @param start     First column of the search window of row "h".
+     * @param end       Column after the last column of the search window of row "h".
+     * @param lower     First column of the search window of the row below.
+     * @param upper     Column after the last column of the search window of the row below.
+     */
+    private void mapRow(int h, int start, int end, int lower, int upper) {
+        List<Integer> row = this.energy.get(h);
+        if (h == this.height - 1) {
+            for (int w = start; w < end; w++) {
+                this.map[h][w] = row.get(w) + this.bias(h, w);
+            }
+            return;
         }
-        // Create energy map.
-        for (int h = this.height - 2; h >= 0; h--) {
-            List<Integer> row = this.energy.get(h);
-            this.map[h][0] = row.get(0) + Utils.min(this.map[h + 1][0], this.map[h + 1][1]);
-            int w;
-            for (w = 1; w < this.width - 1; w++) {
-                this.map[h][w] = row.get(w) +
-                        Utils.min(this.map[h + 1][w - 1], this.map[h + 1][w], this.map[h + 1][w + 1]);
+        int[] below = this.map[h + 1];
+        for (int w = start; w < end; w++) {
+            int min = INF;
+            for (int i = Utils.max(w - 1, lower); i <= w + 1 && i < upper; i++) {
+                min = Utils.min(min, below[i]);
             }
-            this.map[h][w] = row.get(w) + Utils.min(this.map[h + 1][w - 1], this.map[h + 1][w]);
+            this.map[h][w] = min == INF ? INF : clamp((long) row.get(w) + this.bias(h, w) + min);
         }
     }
+
+    /*
+     * Takes a seam out of the image and, if more seams follow, builds the energy map for
+     * the next seam while doing so. The rows are split into bands. Worker threads take the
+     * seam out of the bands from the bottom up and release each band through a latch. The
+     * energy map only depends on the row below, so one thread builds it band by band right
+     * behind the workers instead of waiting for the whole image.
+     */
+    @Override
+    protected boolean compact(int[] path, int[] values, int[] energyValues, byte[] maskValues, boolean ahead) {
+        int threads = Utils.threads();
+        if (!ahead || threads < 2 || this.windowStart != null) {
+            return super.compact(path, values, energyValues, maskValues, ahead);
+        }
+        int width = this.width, last = this.height - 1;
+        int bands = (this.height + BAND - 1) / BAND;
+        CountDownLatch[] compacted = new CountDownLatch[bands];
+        for (int b = 0; b < bands; b++) compacted[b] = new CountDownLatch(1);
+        boolean[] built = {true};
+
+        Utils.parallel((cpu, cpus) -> {
+            if (cpu > 0) {
+                // Workers take bands from the bottom up, so the energy map can start right away.
+                for (int b = bands - cpu; b >= 0; b -= cpus - 1) {
+                    for (int h = Utils.min((b + 1) * BAND, this.height) - 1; h >= b * BAND; h--) {
+                        this.compact(h, path[h], width, values, energyValues, maskValues);
+                    }
+                    compacted[b].countDown();
+                }
+                return;
+            }
+            boolean interrupted = false;
+            for (int b = bands - 1; b >= 0; b--) {
+                while (true) {
+                    try {
+                        compacted[b].await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (!built[0]) continue;
+                for (int h = Utils.min((b + 1) * BAND, this.height) - 1; h >= b * BAND; h--) {
+                    if (h < last && this.cancelled(h)) {
+                        built[0] = false;
+                        break;
+                    }
+                    this.mapRow(h, 0, width - 1, 0, width - 1);
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        });
+        return built[0];
+    }
 }
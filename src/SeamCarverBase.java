@@ -4,7 +4,10 @@
  * Implements the SeamCarverBase class.
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Stack;
 
@@ -14,11 +17,24 @@ import java.util.Stack;
  * approaches.
  */
 public abstract class SeamCarverBase {
+    // Value stored in the energy map for pixels outside of the search window.
+    protected static final int INF = Integer.MAX_VALUE;
+    // Cost added to protected pixels and subtracted from pixels marked for removal.
+    // Larger than the cost of any single unmarked pixel, which is at most about 4080
+    // for backward or forward energy, so moving a seam off one protected pixel always
+    // lowers its cost. It does not outweigh a whole path of unmarked pixels.
+    protected static final int MASK_COST = 1 << 16;
+    // Bias applied by the energy map for each mask value.
+    private static final int[] BIAS = {0, -MASK_COST, MASK_COST};
+
     // Height of the image.
     protected int height;
     // Width of the image.
     protected int width;
-    // Prevents a new image to be written to the "data" field every time a seam is removed.
+    // Maximum number of seams patched into "data" before it is rebuilt from scratch instead.
+    private static final int PATCH_LIMIT = 8;
+
+    // If false, seams are not patched into "data" one by one. It is rebuilt when next requested.
     protected boolean update;
     // Stores the indices of the seams that were removed from the image.
     protected Stack<int[]> seams;
@@ -31,22 +47,77 @@ public abstract class SeamCarverBase {
     protected List<List<Integer>> energy;
     // The actual image.
     protected List<List<Integer>> image;
-    // The current image as a flattened array.
+    // The current image as a flattened array. Only brought up to date by getImage.
     protected int[] data;
+    // Width of the image "data" currently holds.
+    private int dataWidth;
+    // Seams added/removed since "data" was last brought up to date. Each patch holds the
+    // path of the seam and, for added seams, the values that were added.
+    private final List<int[][]> patches;
+    // If true, "data" has to be rebuilt from the image instead of patched.
+    private boolean rebuild;
+    // The seam to highlight in "data", or null, and its color.
+    private int[] highlightPath;
+    private int highlightColor;
+    // The highlighted seam currently drawn over "data" and the pixels it covers.
+    private int[] overlayPath;
+    private int[] overlayPixels;
+    // Rectangle of "data" painted over by "paintMask" as left, top, right and bottom, or null.
+    private int[] painted;
+    // Region of "data" changed since the last call to getDirtyRegion as x, y, width and height.
+    private final int[] dirty;
     // The energy map used to quickly compute new seams.
     protected int[][] map;
+    // Set when the energy map no longer matches the energy and must be rebuilt before the next seam.
+    protected boolean stale;
+    // The next seam, found ahead of time by "prepare". Only valid while the energy map is not stale.
+    private int[] next;
+    // Set while removing several seams when more seams follow the current one.
+    private boolean ahead;
+    // Marks pixels that should be removed first or protected from carving.
+    protected byte[][] mask;
+    // Stores the mask values of the seams that were removed from the image.
+    protected Stack<byte[]> maskValues;
+    // Number of pixels currently marked for removal.
+    protected int masked;
+    // First and last (exclusive) column of each row the seam search is restricted to.
+    // If null, seams may pass through any column.
+    protected int[] windowStart, windowEnd;
+    // Checked while the energy map is built. Set for the duration of a carve.
+    protected CancellationToken token;
+
+    // Number of steps reported to a ProgressListener while a Seam Carver is built.
+    public static final int BUILD_STEPS = 3;
 
     // Constructor which takes in an 2D image array where each int represents the RGB pixel.
     public SeamCarverBase(int[][] image) {
+        this(image, ProgressListener.NONE);
+    }
+
+    /*
+     * Creates a Seam Carver for the given image and reports each step of the build
+     * to the given listener.
+     *
+     * @param image     2D image array where each int represents the RGB pixel.
+     * @param listener  The listener to report progress to.
+     */
+    public SeamCarverBase(int[][] image, ProgressListener listener) {
         this.height = image.length;
         this.width = image[0].length;
         this.update = true;
         this.seams = new Stack<>();
         this.values = new Stack<>();
         this.energyValues = new Stack<>();
+        this.maskValues = new Stack<>();
+        this.token = CancellationToken.NONE;
         this.image = new ArrayList<>(this.height);
         this.data = new int[this.height * this.width];
+        this.dataWidth = this.width;
+        this.patches = new ArrayList<>();
+        this.overlayPixels = new int[this.height * 3];
+        this.dirty = new int[] {0, 0, this.width, this.height};
         this.map = new int[this.height][this.width];
+        this.mask = new byte[this.height][this.width];
 
         for (int h = 0; h < this.height; h++) {
             this.image.add(new ArrayList<>(this.width));
@@ -61,6 +132,106 @@ public abstract class SeamCarverBase {
                 }
             }
         });
+        listener.progress("Copying pixels", 1, BUILD_STEPS);
+    }
+
+    /*
+     * Creates a Seam Carver from a checkpoint. The energy and energy map are read
+     * from the checkpoint rather than computed.
+     *
+     * @param checkpoint    The checkpoint to resume from.
+     * @throws              IOException if the checkpoint could not be read.
+     */
+    protected SeamCarverBase(Checkpoint checkpoint) throws IOException {
+        this.height = checkpoint.height;
+        this.width = checkpoint.width;
+        this.update = checkpoint.update;
+        this.seams = new Stack<>();
+        this.values = new Stack<>();
+        this.energyValues = new Stack<>();
+        this.maskValues = new Stack<>();
+        this.token = CancellationToken.NONE;
+        this.data = new int[this.height * checkpoint.capacity];
+        this.dataWidth = this.width;
+        this.patches = new ArrayList<>();
+        this.rebuild = true;
+        this.overlayPixels = new int[this.height * 3];
+        this.dirty = new int[] {0, 0, this.width, this.height};
+        this.map = new int[this.height][checkpoint.capacity];
+        this.mask = new byte[this.height][checkpoint.capacity];
+        checkpoint.restore(this);
+    }
+
+    /*
+     * Creates the energy map from the current energy image. The map is rebuilt
+     * lazily, right before the next seam is found. Implementations may stop early
+     * if "cancelled" returns true.
+     */
+    protected abstract void energyMap();
+
+    // Returns true if the energy map should stop building at row "h". Checked every 64 rows.
+    protected boolean cancelled(int h) {
+        return (h & 63) == 0 && this.token.isCancelled();
+    }
+
+    /*
+     * Grows the internal buffers so that they can hold an image of the given width.
+     *
+     * @param width     The width the buffers must be able to hold.
+     */
+    protected void ensureCapacity(int width) {
+        if (this.map[0].length < width) {
+            this.map = new int[this.height][width];
+        }
+        if (this.data.length < this.height * width) {
+            this.data = new int[this.height * width];
+            this.rebuild = true;
+        }
+        if (this.mask[0].length < width) {
+            for (int h = 0; h < this.height; h++) {
+                this.mask[h] = Arrays.copyOf(this.mask[h], width);
+            }
+        }
+    }
+
+    /*
+     * Clamps a sum of energy map values to the range of an int, short of INF. Masked
+     * columns add MASK_COST for every row, which overflows on tall images otherwise.
+     *
+     * @param value     The sum.
+     * @return          The clamped sum.
+     */
+    protected static int clamp(long value) {
+        return (int) Math.max(Math.min(value, INF - 1L), -(INF - 1L));
+    }
+
+    // Returns the bias the energy map adds to the pixel at the given coordinates.
+    protected int bias(int h, int w) {
+        return BIAS[this.mask[h][w]];
+    }
+
+    // Returns the first column of row "h" the seam search may use.
+    protected int start(int h) {
+        return this.windowStart == null ? 0 : this.windowStart[h];
+    }
+
+    // Returns the column after the last column of row "h" the seam search may use.
+    protected int end(int h) {
+        return this.windowEnd == null ? this.width : this.windowEnd[h];
+    }
+
+    /*
+     * Restricts the search for the next seams to the given columns of each row.
+     * The windows are given in the coordinates of the current image and have to
+     * allow for a connected seam.
+     *
+     * @param start     First column of each row. If null, the window is cleared.
+     * @param end       Column after the last column of each row.
+     */
+    protected void setWindow(int[] start, int[] end) {
+        this.windowStart = start;
+        this.windowEnd = start == null ? null : end;
+        this.stale = true;
     }
 
     // Returns the width of the image.
@@ -75,12 +246,26 @@ public abstract class SeamCarverBase {
 
     // Returns the current state of the image as a flattened array.
     public int[] getImage() {
+        this.materialize();
         return this.data;
     }
 
     /*
-     * Updates the "update" property, which determines if the display
-     * image should be updated when seams are added/removed.
+     * Returns the region of the image array that changed since the last call to this
+     * method and resets it.
+     *
+     * @return          The x, y, width and height of the changed region.
+     */
+    public int[] getDirtyRegion() {
+        int[] region = this.dirty.clone();
+        this.dirty[0] = this.dirty[1] = this.dirty[2] = this.dirty[3] = 0;
+        return region;
+    }
+
+    /*
+     * Updates the "update" property. If true, added/removed seams are patched into
+     * the image array when it is next requested. If false, the image array is rebuilt
+     * from scratch instead, which is cheaper when many seams are carved between requests.
      *
      * @param update    Value to set.
      */
@@ -88,6 +273,17 @@ public abstract class SeamCarverBase {
         this.update = update;
     }
 
+    /*
+     * Saves the state of the Seam Carver, including the removed seams, to a checkpoint
+     * file. See Checkpoint for the layout of the file.
+     *
+     * @param file      The checkpoint file.
+     * @throws          IOException if the file could not be written.
+     */
+    public void save(File file) throws IOException {
+        Checkpoint.save(this, file);
+    }
+
     /*
      * Sets the energy to the given value at the given coordinates.
      *
@@ -97,6 +293,148 @@ public abstract class SeamCarverBase {
      */
     public void setEnergy(int x, int y, int val) {
         this.energy.get(y).set(x, val);
+        this.stale = true;
+    }
+
+    /*
+     * Marks the pixel at the given coordinates for removal or protection. The mask
+     * biases the search for seams, but leaves the energy untouched.
+     *
+     * @param x     X Coordinate in columns of image.
+     * @param y     Y Coordinate in rows of image.
+     * @param val   One of MASK_NONE, MASK_REMOVE or MASK_PROTECT.
+     */
+    public void setMask(int x, int y, int val) {
+        byte previous = this.mask[y][x];
+        if (previous == val) return;
+        if (previous == SeamCarver.MASK_REMOVE) this.masked--;
+        if (val == SeamCarver.MASK_REMOVE) this.masked++;
+        this.mask[y][x] = (byte) val;
+        this.stale = true;
+    }
+
+    /*
+     * Sets the mask value of every pixel in a rectangle. The rectangle is clipped to
+     * the image. The energy map is rebuilt once, when the next seam is removed.
+     *
+     * @param x         The x coordinate of the top left corner.
+     * @param y         The y coordinate of the top left corner.
+     * @param width     The width of the rectangle.
+     * @param height    The height of the rectangle.
+     * @param val       One of SeamCarver.MASK_NONE, MASK_REMOVE or MASK_PROTECT.
+     */
+    public void fillMask(int x, int y, int width, int height, int val) {
+        int left = Utils.max(x, 0), right = Utils.min(x + width, this.width);
+        int top = Utils.max(y, 0), bottom = Utils.min(y + height, this.height);
+        byte value = (byte) val;
+        for (int h = top; h < bottom; h++) {
+            byte[] row = this.mask[h];
+            for (int w = left; w < right; w++) {
+                byte previous = row[w];
+                if (previous == value) continue;
+                if (previous == SeamCarver.MASK_REMOVE) this.masked--;
+                if (value == SeamCarver.MASK_REMOVE) this.masked++;
+                row[w] = value;
+                this.stale = true;
+            }
+        }
+    }
+
+    /*
+     * Sets the mask value of every pixel in a rectangle like "fillMask" and colors the
+     * rectangle in on the image array. The color is only drawn over the image array,
+     * so it is gone once the image next changes.
+     *
+     * @param x         The x coordinate of the top left corner.
+     * @param y         The y coordinate of the top left corner.
+     * @param width     The width of the rectangle.
+     * @param height    The height of the rectangle.
+     * @param val       One of SeamCarver.MASK_NONE, MASK_REMOVE or MASK_PROTECT.
+     * @param color     The color to paint the rectangle with.
+     */
+    public void paintMask(int x, int y, int width, int height, int val, int color) {
+        this.fillMask(x, y, width, height, val);
+        int left = Utils.max(x, 0), right = Utils.min(x + width, this.width);
+        int top = Utils.max(y, 0), bottom = Utils.min(y + height, this.height);
+        if (right <= left || bottom <= top) return;
+        this.materialize();
+        for (int h = top; h < bottom; h++) {
+            Arrays.fill(this.data, h * this.width + left, h * this.width + right, color);
+        }
+        if (this.painted == null) {
+            this.painted = new int[] {left, top, right, bottom};
+        } else {
+            this.painted[0] = Utils.min(this.painted[0], left);
+            this.painted[1] = Utils.min(this.painted[1], top);
+            this.painted[2] = Utils.max(this.painted[2], right);
+            this.painted[3] = Utils.max(this.painted[3], bottom);
+        }
+    }
+
+    /*
+     * Replaces the entire mask.
+     *
+     * @param mask      The mask values. Must have the same dimensions as the current image.
+     */
+    public void loadMask(int[][] mask) {
+        if (mask.length != this.height || mask[0].length != this.width) {
+            throw new IllegalArgumentException("Mask dimensions do not match the image");
+        }
+        for (int h = 0; h < this.height; h++) {
+            for (int w = 0; w < this.width; w++) {
+                this.setMask(w, h, mask[h][w]);
+            }
+        }
+    }
+
+    /*
+     * Removes seams until no pixel marked for removal is left. The seam search is
+     * restricted to the band of columns that still contains marked pixels.
+     *
+     * @param highlight If true, highlight the last removed seam.
+     * @param color     The color of the highlighted seam.
+     * @return          The number of seams that were removed.
+     */
+    public int erase(boolean highlight, int color) {
+        if (this.masked == 0) return 0;
+        boolean update = this.update;
+        this.update = false;
+        int[] start = new int[this.height];
+        int[] end = new int[this.height];
+        int lower = 0, upper = this.width;
+        int count = 0;
+        while (this.masked > 0 && this.width > 2) {
+            // Seams stay within the band and removing one only moves pixels to the
+            // left, so the next band lies within the previous one.
+            int first = upper, last = lower - 1;
+            for (int h = 0; h < this.height; h++) {
+                byte[] row = this.mask[h];
+                for (int w = lower; w < first; w++) {
+                    if (row[w] == SeamCarver.MASK_REMOVE) {
+                        first = w;
+                        break;
+                    }
+                }
+                for (int w = upper - 1; w > last; w--) {
+                    if (row[w] == SeamCarver.MASK_REMOVE) {
+                        last = w;
+                        break;
+                    }
+                }
+            }
+            lower = first;
+            upper = last + 1;
+            Arrays.fill(start, lower);
+            Arrays.fill(end, upper);
+            this.setWindow(start, end);
+            this.remove(false, color);
+            upper = Utils.min(upper, this.width);
+            count++;
+        }
+        this.setWindow(null, null);
+        this.update = update;
+        this.setHighlight(highlight, color);
+        return count;
     }
 
     /*
@@ -108,15 +446,34 @@ public abstract class SeamCarverBase {
      * @return          The number of seams that were actually added.
      */
     public int add(int count, boolean highlight, int color) {
+        return this.add(count, highlight, color, ProgressListener.NONE, CancellationToken.NONE);
+    }
+
+    /*
+     * Adds "count" seams to the image, reporting progress after every seam. If the
+     * token is cancelled, the remaining seams are not added.
+     *
+     * @param count     Number of seams to add.
+     * @param highlight If true, highlight the added seam.
+     * @param color     The color of the highlighted seam.
+     * @param listener  The listener to report progress to.
+     * @param token     The token to stop adding seams with.
+     * @return          The number of seams that were actually added.
+     */
+    public int add(int count, boolean highlight, int color, ProgressListener listener, CancellationToken token) {
         if (this.seams.isEmpty() || count <= 0) return 0;
         this.update = false;
-        int index = 1;
-        while (index++ < count && this.seams.size() > 1) {
-            this.add(highlight, color);
+        long start = System.nanoTime();
+        int added = 0;
+        try {
+            while (added < count && !token.isCancelled() && this.add(highlight, color)) {
+                added++;
+                listener.seams(added, count, remaining(start, added, count));
+            }
+        } finally {
+            this.update = true;
         }
-        this.update = true;
-        this.add(highlight, color);
-        return index - 1;
+        return added;
     }
 
     /*
@@ -132,6 +489,7 @@ public abstract class SeamCarverBase {
         int[] path = this.seams.pop();
         int[] values = this.values.pop();
         int[] energy = this.energyValues.pop();
+        byte[] mask = this.maskValues.pop();
 
         // Go through all indices of the most recently removed
         // seam and add the corresponding values back into the
@@ -140,17 +498,18 @@ public abstract class SeamCarverBase {
             for (int i = cpu; i < path.length; i += cpus) {
                 this.image.get(i).add(path[i], values[i]);
                 this.energy.get(i).add(path[i], energy[i]);
+                byte[] row = this.mask[i];
+                System.arraycopy(row, path[i], row, path[i] + 1, this.width - path[i]);
+                row[path[i]] = mask[i];
             }
         });
+        for (byte value : mask) {
+            if (value == SeamCarver.MASK_REMOVE) this.masked++;
+        }
 
         this.width += 1;
-        if (this.update) {
-            if (highlight) {
-                this.updateImage(path, color);
-            } else {
-                this.updateImage();
-            }
-        }
+        this.stale = true;
+        this.patch(path, values, highlight, color);
         return true;
     }
 
@@ -163,119 +522,717 @@ public abstract class SeamCarverBase {
      * @return          The number of seams that were actually removed.
      */
     public int remove(int count, boolean highlight, int color) {
+        return this.remove(count, highlight, color, ProgressListener.NONE, CancellationToken.NONE);
+    }
+
+    /*
+     * Remove "count" seams from the image, reporting progress after every seam. The
+     * token is checked between seams and while the energy map is built. A cancelled
+     * carve stops before the next seam is removed, so all removed seams can still be
+     * added back.
+     *
+     * @param count     Number of seams to remove.
+     * @param highlight If true, highlight the last removed seam.
+     * @param color     The color of the highlighted seam.
+     * @param listener  The listener to report progress to.
+     * @param token     The token to stop removing seams with.
+     * @return          The number of seams that were actually removed.
+     */
+    public int remove(int count, boolean highlight, int color, ProgressListener listener, CancellationToken token) {
         if (this.width == 2 || count <= 0) return 0;
         this.update = false;
-        int index = 1;
-        while (index++ < count && this.width > 3) {
-            this.remove(highlight, color);
+        this.token = token;
+        long start = System.nanoTime();
+        int removed = 0;
+        try {
+            while (removed < count && !token.isCancelled()) {
+                // More seams follow, so the energy map for the next one may be built right away.
+                this.ahead = removed + 1 < count;
+                if (!this.remove(highlight, color)) break;
+                removed++;
+                listener.seams(removed, count, remaining(start, removed, count));
+            }
+        } finally {
+            this.ahead = false;
+            this.token = CancellationToken.NONE;
+            this.update = true;
         }
-        this.update = true;
-        this.remove(highlight, color);
-        return index - 1;
+        this.setHighlight(highlight, color);
+        return removed;
     }
 
     /*
-     * Removes the next seam from the image.
+     * Estimates the time remaining for a carve from its progress so far.
      *
-     * @param highlight If true, highlight the added seam.
-     * @param color     The color of the highlighted seam.
-     * @return          true if seam could be removed, false otherwise.
+     * @param start     Start of the carve as given by System.nanoTime().
+     * @param done      Number of seams carved so far.
+     * @param total     Number of seams requested.
+     * @return          Estimated time remaining in milliseconds.
      */
-    public boolean remove(boolean highlight, int color) {
+    private static long remaining(long start, int done, int total) {
+        long elapsed = System.nanoTime() - start;
+        return elapsed / done * (total - done) / 1000000;
+    }
+
+    /*
+     * Finds the next seam ahead of time, so that the next call to "remove" only has to
+     * take it out of the image. Any change that makes the energy map stale discards it.
+     *
+     * @param token     The token to stop building the energy map with.
+     * @return          True if the next seam is ready.
+     */
+    public boolean prepare(CancellationToken token) {
         if (this.width == 2) return false;
+        if (this.stale) {
+            this.token = token;
+            try {
+                this.energyMap();
+            } finally {
+                this.token = CancellationToken.NONE;
+            }
+            if (token.isCancelled()) return false;
+            this.stale = false;
+            this.next = null;
+        }
+        if (this.next == null) this.next = this.findSeam();
+        return true;
+    }
 
+    /*
+     * Finds the lowest energy seam in the energy map.
+     *
+     * @return          The column of the seam in every row.
+     */
+    private int[] findSeam() {
         int[] path = new int[this.height];
-        int[] values = new int[this.height];
-        int[] energyValues = new int[this.height];
-
         // Find the minimum value in the first row of the energy map.
-        int minIndex = Utils.argmin(this.map[0], this.width);
+        int minIndex = Utils.argmin(this.map[0], this.start(0), this.end(0));
         path[0] = minIndex;
-        values[0] = this.image.get(0).remove(minIndex);
-        energyValues[0] = this.energy.get(0).remove(minIndex);
         // After finding the minimum value in the first row of the energy
         // map, move through all rows of the image to find a seam. Seams must
         // be connected, therefore only the three pixels directly below the current
         // index will be considered as the next part of the seam.
         for (int h = 1; h < this.height; h++) {
             int[] row = this.map[h];
-            if (minIndex == 0) {
-                minIndex = Utils.min(row[0], row[1]) == row[0] ? 0 : 1;
-            } else if (minIndex == this.width - 1) {
-                int minValue = Utils.min(row[this.width - 2], row[this.width - 1]);
-                minIndex = row[this.width - 2] == minValue ? this.width - 2 : this.width - 1;
+            int start = this.start(h), end = this.end(h);
+            int left = Utils.max(minIndex - 1, start), right = Utils.min(minIndex + 1, end - 1);
+            if (left > right) {
+                // The seam left the search window, so it moves to the closest column inside it.
+                minIndex = Utils.max(start, Utils.min(minIndex, end - 1));
+            } else if (left == minIndex - 1 && right == minIndex + 1) {
+                // Ties go to the left neighbour first, then the right one, then straight down.
+                int minValue = Utils.min(row[left], row[minIndex], row[right]);
+                if (row[left] == minValue) minIndex = left;
+                else if (row[right] == minValue) minIndex = right;
             } else {
-                int minValue = Utils.min(row[minIndex - 1], row[minIndex], row[minIndex + 1]);
-                if (row[minIndex - 1] == minValue) minIndex = minIndex - 1;
-                else if (row[minIndex + 1] == minValue) minIndex = minIndex + 1;
+                // At the edge of the image or window, ties go to the leftmost column.
+                int index = left;
+                for (int w = left + 1; w <= right; w++) {
+                    if (row[w] < row[index]) index = w;
+                }
+                minIndex = index;
             }
             path[h] = minIndex;
         }
+        return path;
+    }
 
-        Utils.parallel((cpu, cpus) -> {
-            for (int h = 1 + cpu; h < this.height; h += cpus) {
-                values[h] = this.image.get(h).remove(path[h]);
-                energyValues[h] = this.energy.get(h).remove(path[h]);
-            }
-        });
+    /*
+     * Removes the next seam from the image. Uses the seam found by "prepare" if
+     * nothing changed since.
+     *
+     * @param highlight If true, highlight the added seam.
+     * @param color     The color of the highlighted seam.
+     * @return          true if seam could be removed, false otherwise.
+     */
+    public boolean remove(boolean highlight, int color) {
+        if (this.width == 2) return false;
+        if (this.stale) {
+            this.energyMap();
+            // A cancelled energy map is incomplete and stays stale.
+            if (this.token.isCancelled()) return false;
+            this.stale = false;
+            this.next = null;
+        }
 
-        this.width -= 1;
-        if (this.update) {
-            if (highlight) {
-                this.updateImage(path, color);
+        int[] path = this.next == null ? this.findSeam() : this.next;
+        this.next = null;
+        this.take(path, highlight, color, this.ahead);
+        return true;
+    }
+
+    /*
+     * Removes the next seam from the image, found either exactly or by a beam search.
+     * The beam search skips the energy map, so it is much faster but may pick a seam
+     * with more energy than the exact one. See "approximateSeam".
+     *
+     * @param highlight If true, highlight the removed seam.
+     * @param color     The color of the highlighted seam.
+     * @param beam      Number of partial seams the search follows. 0 finds the exact seam.
+     * @return          true if seam could be removed, false otherwise.
+     */
+    public boolean remove(boolean highlight, int color, int beam) {
+        if (beam <= 0) return this.remove(highlight, color);
+        if (this.width == 2) return false;
+        int[] path = this.approximateSeam(beam);
+        // The energy map and any prepared seam no longer match the image.
+        this.next = null;
+        this.take(path, highlight, color, false);
+        return true;
+    }
+
+    /*
+     * Remove "count" seams from the image, found either exactly or by a beam search.
+     *
+     * @param count     Number of seams to remove.
+     * @param highlight If true, highlight the last removed seam.
+     * @param color     The color of the highlighted seam.
+     * @param beam      Number of partial seams the search follows. 0 finds the exact seams.
+     * @return          The number of seams that were actually removed.
+     */
+    public int remove(int count, boolean highlight, int color, int beam) {
+        if (beam <= 0) return this.remove(count, highlight, color);
+        if (this.width == 2 || count <= 0) return 0;
+        this.update = false;
+        int removed = 0;
+        try {
+            while (removed < count && this.remove(highlight, color, beam)) removed++;
+        } finally {
+            this.update = true;
+        }
+        this.setHighlight(highlight, color);
+        return removed;
+    }
+
+    /*
+     * Compares the seam a beam search would remove next with the exact seam, without
+     * removing either. Builds the energy map if it is stale.
+     *
+     * @param beam      Number of partial seams the search follows.
+     * @return          The energy of the approximate seam and of the exact seam, or null
+     *                  if no seam can be removed.
+     */
+    public long[] compareSeams(int beam) {
+        if (!this.prepare(CancellationToken.NONE)) return null;
+        return new long[] {this.seamCost(this.approximateSeam(Utils.max(beam, 1))), this.seamCost(this.next)};
+    }
+
+    /*
+     * Returns the cost of stepping onto a pixel, the same cost the energy map adds up.
+     *
+     * @param h         The row of the pixel.
+     * @param w         The column of the pixel.
+     * @param previous  Column of the seam in the row above. Ignored in the first row.
+     * @return          The cost of the pixel.
+     */
+    protected int cost(int h, int w, int previous) {
+        return this.energy.get(h).get(w) + this.bias(h, w);
+    }
+
+    // Returns the total cost of a seam.
+    private long seamCost(int[] path) {
+        long cost = this.cost(0, path[0], -1);
+        for (int h = 1; h < this.height; h++) {
+            cost += this.cost(h, path[h], path[h - 1]);
+        }
+        return cost;
+    }
+
+    /*
+     * Finds a low energy seam without the energy map. The "beam" cheapest pixels of the
+     * first row start a partial seam each. Every row, each partial seam is extended to
+     * the three pixels below it, only the cheapest seam ending in each column is kept,
+     * and of those the "beam" cheapest go on to the next row. A beam of 1 greedily
+     * follows the cheapest neighbour down. Looks at about 3 * beam pixels per row
+     * instead of every pixel.
+     *
+     * @param beam      Number of partial seams to follow.
+     * @return          The column of the seam in every row.
+     */
+    private int[] approximateSeam(int beam) {
+        int height = this.height;
+        // Columns of the partial seams in every row and the partial seam each continues.
+        int[][] columns = new int[height][], parents = new int[height][];
+        // Candidates for the next row: cost, column and the partial seam they extend.
+        int limit = Utils.max(3 * beam, this.end(0) - this.start(0));
+        long[] costs = new long[limit];
+        int[] candidates = new int[limit], from = new int[limit], order = new int[beam];
+        // Index of the candidate ending in each column, -1 for none.
+        int[] slot = new int[this.width];
+        Arrays.fill(slot, -1);
+        long[] previous = new long[beam];
+
+        for (int h = 0; h < height; h++) {
+            int start = this.start(h), end = this.end(h);
+            int count = 0;
+            if (h == 0) {
+                for (int w = start; w < end; w++, count++) {
+                    costs[count] = this.cost(0, w, -1);
+                    candidates[count] = w;
+                }
             } else {
-                this.updateImage();
+                int[] above = columns[h - 1];
+                for (int b = 0; b < above.length; b++) {
+                    int c = above[b];
+                    int first = Utils.max(c - 1, start), last = Utils.min(c + 1, end - 1);
+                    if (first > last) {
+                        // Outside of the window, the seam is moved into it as "findSeam" does.
+                        first = last = Utils.max(start, Utils.min(c, end - 1));
+                    }
+                    for (int w = first; w <= last; w++) {
+                        long cost = previous[b] + this.cost(h, w, c);
+                        int i = slot[w];
+                        if (i == -1) {
+                            i = slot[w] = count++;
+                        } else if (cost >= costs[i]) {
+                            continue;
+                        }
+                        costs[i] = cost;
+                        candidates[i] = w;
+                        from[i] = b;
+                    }
+                }
+                for (int i = 0; i < count; i++) slot[candidates[i]] = -1;
+            }
+
+            int kept = select(costs, count, beam, order);
+            columns[h] = new int[kept];
+            parents[h] = new int[kept];
+            for (int i = 0; i < kept; i++) {
+                columns[h][i] = candidates[order[i]];
+                parents[h][i] = from[order[i]];
+                previous[i] = costs[order[i]];
+            }
+        }
+
+        // Follow the cheapest partial seam in the last row back up.
+        int[] path = new int[height];
+        for (int h = height - 1, b = 0; h >= 0; h--) {
+            path[h] = columns[h][b];
+            b = parents[h][b];
+        }
+        return path;
+    }
+
+    /*
+     * Finds the "k" smallest costs.
+     *
+     * @param costs     The costs.
+     * @param count     Number of costs.
+     * @param k         Number of costs to find.
+     * @param order     Filled with the indices of the smallest costs, smallest first.
+     * @return          Number of indices in "order".
+     */
+    private static int select(long[] costs, int count, int k, int[] order) {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size == k && costs[i] >= costs[order[size - 1]]) continue;
+            int j = size < k ? size++ : size - 1;
+            while (j > 0 && costs[order[j - 1]] > costs[i]) {
+                order[j] = order[j - 1];
+                j--;
             }
+            order[j] = i;
         }
+        return size;
+    }
+
+    /*
+     * Takes a seam out of the image and records it so it can be added back.
+     *
+     * @param path      The column of the seam in every row.
+     * @param highlight If true, highlight the removed seam.
+     * @param color     The color of the highlighted seam.
+     * @param ahead     If true, another seam is removed right after this one.
+     */
+    private void take(int[] path, boolean highlight, int color, boolean ahead) {
+        int[] values = new int[this.height];
+        int[] energyValues = new int[this.height];
+        byte[] maskValues = new byte[this.height];
+
+        boolean built = this.compact(path, values, energyValues, maskValues, ahead);
+        for (byte value : maskValues) {
+            if (value == SeamCarver.MASK_REMOVE) this.masked--;
+        }
+
+        this.width -= 1;
+        this.stale = !built;
+        this.patch(path, null, highlight, color);
         this.seams.push(path);
         this.values.push(values);
         this.energyValues.push(energyValues);
-        return true;
+        this.maskValues.push(maskValues);
     }
 
     /*
-     * Updates the display image.
+     * Takes a seam out of every row of the image, the energy and the mask. Implementations
+     * may build the energy map for the next seam at the same time.
      *
-     * @param highlight If true, highlight the added seam.
+     * @param path          The column of the seam in every row.
+     * @param values        Filled with the pixels of the seam.
+     * @param energyValues  Filled with the energy of the seam.
+     * @param maskValues    Filled with the mask values of the seam.
+     * @param ahead         If true, another seam is removed right after this one.
+     * @return              True if the energy map for the image without the seam was built.
+     */
+    protected boolean compact(int[] path, int[] values, int[] energyValues, byte[] maskValues, boolean ahead) {
+        int width = this.width;
+        Utils.parallel((cpu, cpus) -> {
+            for (int h = cpu; h < this.height; h += cpus) {
+                this.compact(h, path[h], width, values, energyValues, maskValues);
+            }
+        });
+        return false;
+    }
+
+    /*
+     * Takes the pixel at column "w" out of row "h" of the image, the energy and the mask.
+     *
+     * @param h             The row.
+     * @param w             The column of the seam in the row.
+     * @param width         Width of the image before the seam is removed.
+     * @param values        Receives the pixel of the seam.
+     * @param energyValues  Receives the energy of the seam.
+     * @param maskValues    Receives the mask value of the seam.
+     */
+    protected void compact(int h, int w, int width, int[] values, int[] energyValues, byte[] maskValues) {
+        values[h] = this.image.get(h).remove(w);
+        energyValues[h] = this.energy.get(h).remove(w);
+        byte[] row = this.mask[h];
+        maskValues[h] = row[w];
+        System.arraycopy(row, w + 1, row, w, width - w - 1);
+    }
+
+    /*
+     * Inserts "count" new seams into the image, allowing it to grow past its original
+     * size. The "count" lowest energy seams are found in one batch and every row is
+     * then rebuilt in a single pass, with each seam pixel followed by a copy made from
+     * the average of its neighbours.
+     * Enlarging clears the seam history, as the removed seams no longer line up with
+     * the widened image.
+     *
+     * @param count     Number of seams to insert.
+     * @param highlight If true, highlight the inserted seams.
+     * @param color     The color of the highlighted seams.
+     * @return          The number of seams that were actually inserted.
+     */
+    public int enlarge(int count, boolean highlight, int color) {
+        count = Utils.min(count, this.width - 2);
+        if (count <= 0) return 0;
+        boolean update = this.update;
+        this.update = false;
+
+        // Find the seams by removing them and then restoring the image. Restoring
+        // does not rebuild the energy map, so this costs "count" seam removals.
+        int[][] batch = new int[count][];
+        for (int i = 0; i < count; i++) {
+            this.remove(false, color);
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            batch[i] = this.seams.peek();
+            this.add(false, color);
+        }
+
+        int width = this.width, seams = count;
+        this.ensureCapacity(width + seams);
+        int[] marked = new int[this.height];
+        // Column indices of the inserted pixels in the enlarged image, used for highlighting.
+        int[][] inserted = new int[this.height][seams];
+        Utils.parallel((cpu, cpus) -> {
+            int[] tree = new int[width + 1];
+            boolean[] seam = new boolean[width];
+            for (int h = cpu; h < this.height; h += cpus) {
+                // Each seam index counts only the pixels left after the previous seams
+                // were removed. Map them back to the original columns.
+                Arrays.fill(seam, false);
+                for (int i = 1; i <= width; i++) tree[i] = i & -i;
+                for (int[] path : batch) {
+                    int column = select(tree, path[h] + 1);
+                    seam[column] = true;
+                    for (int i = column + 1; i <= width; i += i & -i) tree[i]--;
+                }
+
+                List<Integer> row = this.image.get(h);
+                List<Integer> energyRow = this.energy.get(h);
+                List<Integer> newRow = new ArrayList<>(width + seams);
+                List<Integer> newEnergyRow = new ArrayList<>(width + seams);
+                byte[] maskRow = this.mask[h];
+                byte[] newMaskRow = new byte[maskRow.length];
+                int index = 0;
+                for (int w = 0; w < width; w++) {
+                    newMaskRow[newRow.size()] = maskRow[w];
+                    newRow.add(row.get(w));
+                    newEnergyRow.add(energyRow.get(w));
+                    if (!seam[w]) continue;
+                    int left = Utils.max(w - 1, 0), right = Utils.min(w + 1, width - 1);
+                    inserted[h][index++] = newRow.size();
+                    // The copy keeps the mask of the seam pixel it was made from.
+                    newMaskRow[newRow.size()] = maskRow[w];
+                    if (maskRow[w] == SeamCarver.MASK_REMOVE) marked[h]++;
+                    newRow.add(Utils.blend(row.get(left), row.get(right)));
+                    newEnergyRow.add((energyRow.get(left) + energyRow.get(right)) / 2);
+                }
+                this.image.set(h, newRow);
+                this.energy.set(h, newEnergyRow);
+                this.mask[h] = newMaskRow;
+            }
+        });
+
+        this.width += seams;
+        for (int h = 0; h < this.height; h++) {
+            this.masked += marked[h];
+        }
+        this.seams.clear();
+        this.values.clear();
+        this.energyValues.clear();
+        this.maskValues.clear();
+        this.stale = true;
+        this.update = update;
+        this.rebuild = true;
+        this.highlightPath = null;
+        if (highlight) {
+            this.materialize();
+            Utils.parallel((cpu, cpus) -> {
+                for (int h = cpu; h < this.height; h += cpus) {
+                    for (int w : inserted[h]) {
+                        this.data[h * this.width + w] = color;
+                    }
+                }
+            });
+        }
+        return seams;
+    }
+
+    /*
+     * Finds the position of the k-th remaining column in a Fenwick tree where each
+     * remaining column holds a count of 1.
+     *
+     * @param tree      The Fenwick tree (1-indexed).
+     * @param k         The rank of the column to find, starting at 1.
+     * @return          The 0-indexed column.
+     */
+    private static int select(int[] tree, int k) {
+        int position = 0;
+        int step = Integer.highestOneBit(tree.length - 1);
+        for (; step > 0; step >>= 1) {
+            int next = position + step;
+            if (next < tree.length && tree[next] < k) {
+                position = next;
+                k -= tree[next];
+            }
+        }
+        return position;
+    }
+
+    /*
+     * Removes the next seam, searching only within "radius" columns of the given guide
+     * seam. Used to warm start the search from a seam that is known to be close, such
+     * as the same seam in the previous frame of a video.
+     *
+     * @param guide     Column index of the guide seam in each row.
+     * @param radius    Number of columns on either side of the guide to search.
+     * @param highlight If true, highlight the removed seam.
      * @param color     The color of the highlighted seam.
+     * @return          true if seam could be removed, false otherwise.
      */
-    public void updateImage(boolean highlight, int color) {
-        if (highlight && !this.seams.isEmpty()) {
-            this.updateImage(this.seams.peek(), color);
-        } else {
-            this.updateImage();
+    public boolean remove(int[] guide, int radius, boolean highlight, int color) {
+        if (this.width == 2) return false;
+        int[] start = new int[this.height];
+        int[] end = new int[this.height];
+        for (int h = 0; h < this.height; h++) {
+            start[h] = Utils.max(Utils.min(guide[h] - radius, this.width - 1), 0);
+            end[h] = Utils.max(Utils.min(guide[h] + radius + 1, this.width), start[h] + 1);
         }
+        this.setWindow(start, end);
+        boolean valid = this.remove(highlight, color);
+        this.setWindow(null, null);
+        return valid;
+    }
+
+    // Returns the column index of the most recently removed seam in each row, or null.
+    public int[] getSeam() {
+        return this.seams.isEmpty() ? null : this.seams.peek();
     }
 
-    // Updates the current flattened image to match the current state of the image.
-    protected void updateImage() {
+    /*
+     * Returns the mask with every removed seam put back in, so that it lines up with
+     * the image as it was before any seam was removed.
+     *
+     * @return          The mask values of the restored image.
+     */
+    public int[][] getMask() {
+        int width = this.width + this.seams.size();
+        int[][] mask = new int[this.height][width];
         Utils.parallel((cpu, cpus) -> {
+            byte[] row = new byte[width];
             for (int h = cpu; h < this.height; h += cpus) {
-                for (int w = 0; w < this.width; w++) {
-                    this.data[h * this.width + w] = this.image.get(h).get(w);
+                System.arraycopy(this.mask[h], 0, row, 0, this.width);
+                // Undo the seams from the most recently removed one back to the first.
+                int size = this.width;
+                for (int i = this.seams.size() - 1; i >= 0; i--) {
+                    int index = this.seams.get(i)[h];
+                    System.arraycopy(row, index, row, index + 1, size - index);
+                    row[index] = this.maskValues.get(i)[h];
+                    size++;
+                }
+                for (int w = 0; w < width; w++) {
+                    mask[h][w] = row[w];
                 }
             }
         });
+        return mask;
+    }
+
+    /*
+     * Updates the display image.
+     *
+     * @param highlight If true, highlight the added seam.
+     * @param color     The color of the highlighted seam.
+     */
+    public void updateImage(boolean highlight, int color) {
+        this.setHighlight(highlight, color);
+        this.materialize();
     }
 
     /*
-     * Updates the current flattened image to match the current state of the image.
-     * Adds the highlighted seam to the flattened image as well.
+     * Sets whether the most recently removed seam is highlighted the next time
+     * the image array is brought up to date.
+     *
+     * @param highlight If true, highlight the seam.
+     * @param color     The color of the highlighted seam.
+     */
+    private void setHighlight(boolean highlight, int color) {
+        this.highlightPath = highlight && !this.seams.isEmpty() ? this.seams.peek() : null;
+        this.highlightColor = color;
+    }
+
+    /*
+     * Records a seam that was added or removed, so that it can be patched into the
+     * image array when it is next requested.
      *
      * @param path      Array of indices of each seam value.
+     * @param values    The added values, or null if the seam was removed.
+     * @param highlight If true, highlight the seam.
      * @param color     The seam color to use.
      */
-    protected void updateImage(int[] path, int color) {
+    private void patch(int[] path, int[] values, boolean highlight, int color) {
+        if (this.update && !this.rebuild && this.patches.size() < PATCH_LIMIT) {
+            this.patches.add(new int[][] {path, values});
+        } else {
+            this.rebuild = true;
+            this.patches.clear();
+        }
+        this.highlightPath = highlight ? path : null;
+        this.highlightColor = color;
+    }
+
+    /*
+     * Brings the image array up to date. Recorded seams are patched in place, row by
+     * row, by moving the pixels on either side of the seam with two bulk copies. Only
+     * the tail of the first row moves. If too many seams were recorded, the array is
+     * rebuilt from the image instead. The highlighted seam is drawn over the array, and
+     * the pixels it covers are kept so that it can be removed again without a copy.
+     */
+    private void materialize() {
+        boolean overlay = this.highlightPath != this.overlayPath;
+        if (!this.rebuild && this.patches.isEmpty() && !overlay) return;
+
+        int previousWidth = this.dataWidth;
+        int column = this.rebuild ? 0 : previousWidth;
+        // Restore the pixels under the previous highlighted seam.
+        if (this.overlayPath != null && !this.rebuild) {
+            for (int h = 0; h < this.height; h++) {
+                int index = this.overlayPath[h];
+                for (int i = index - 1; i <= index + 1; i++) {
+                    if (i < 0 || i >= this.dataWidth) continue;
+                    this.data[h * this.dataWidth + i] = this.overlayPixels[h * 3 + i - index + 1];
+                }
+                column = Utils.min(column, Utils.max(index - 1, 0));
+            }
+        }
+        this.overlayPath = null;
+
+        if (this.rebuild) {
+            this.updateImage();
+            this.dataWidth = this.width;
+        } else {
+            for (int[][] patch : this.patches) {
+                int[] path = patch[0], values = patch[1];
+                int width = this.dataWidth;
+                if (values == null) {
+                    // Rows move towards the start of the array, so go from the top down.
+                    for (int h = 0; h < this.height; h++) {
+                        int index = path[h];
+                        System.arraycopy(this.data, h * width, this.data, h * (width - 1), index);
+                        System.arraycopy(this.data, h * width + index + 1, this.data, h * (width - 1) + index, width - index - 1);
+                        column = Utils.min(column, index);
+                    }
+                    this.dataWidth--;
+                } else {
+                    // Rows move towards the end of the array, so go from the bottom up.
+                    for (int h = this.height - 1; h >= 0; h--) {
+                        int index = path[h];
+                        System.arraycopy(this.data, h * width + index, this.data, h * (width + 1) + index + 1, width - index);
+                        System.arraycopy(this.data, h * width, this.data, h * (width + 1), index);
+                        this.data[h * (width + 1) + index] = values[h];
+                        column = Utils.min(column, index);
+                    }
+                    this.dataWidth++;
+                }
+            }
+        }
+        // Rows painted over are rebuilt from the image, as the paint moved with the pixels.
+        if (this.painted != null) {
+            if (!this.rebuild) {
+                int top = this.painted[1], bottom = this.painted[3];
+                Utils.parallel((cpu, cpus) -> {
+                    for (int h = top + cpu; h < bottom; h += cpus) {
+                        for (int w = 0; w < this.width; w++) {
+                            this.data[h * this.width + w] = this.image.get(h).get(w);
+                        }
+                    }
+                });
+                column = Utils.min(column, this.painted[0]);
+            }
+            this.painted = null;
+        }
+        this.patches.clear();
+        this.rebuild = false;
+
+        // Draw the highlighted seam, keeping the pixels it covers.
+        int[] path = this.highlightPath;
+        if (path != null) {
+            for (int h = 0; h < this.height; h++) {
+                int index = path[h];
+                for (int i = index - 1; i <= index + 1; i++) {
+                    if (i < 0 || i >= this.width) continue;
+                    this.overlayPixels[h * 3 + i - index + 1] = this.data[h * this.width + i];
+                    this.data[h * this.width + i] = this.highlightColor;
+                }
+                column = Utils.min(column, Utils.max(index - 1, 0));
+            }
+            this.overlayPath = path;
+        }
+
+        // Every changed column is changed in all rows.
+        int end = Utils.max(previousWidth, this.width);
+        if (this.dirty[2] > 0) {
+            end = Utils.max(end, this.dirty[0] + this.dirty[2]);
+            column = Utils.min(column, this.dirty[0]);
+        }
+        this.dirty[0] = column;
+        this.dirty[1] = 0;
+        this.dirty[2] = Utils.max(end - column, 0);
+        this.dirty[3] = this.height;
+    }
+
+    // Rebuilds the current flattened image from the current state of the image.
+    private void updateImage() {
         Utils.parallel((cpu, cpus) -> {
             for (int h = cpu; h < this.height; h += cpus) {
                 for (int w = 0; w < this.width; w++) {
                     this.data[h * this.width + w] = this.image.get(h).get(w);
                 }
-                int pathIndex = path[h];
-                for (int i = pathIndex - 1; i <= pathIndex + 1; i++) {
-                    if (i < 0 || i >= this.width) continue;
-                    this.data[h * this.width + i] = color;
-                }
             }
         });
     }
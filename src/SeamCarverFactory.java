@@ -4,11 +4,7 @@
  */
 
 import java.io.File;
-
-enum EnergyType {
-    BACKWARD,
-    FORWARD
-}
+import java.io.IOException;
 
 public class SeamCarverFactory {
 
@@ -20,15 +16,59 @@ public class SeamCarverFactory {
         return this.create(Utils.readImage(filename), horizontal, type);
     }
 
-    private SeamCarver create(int[][] image, boolean horizontal, EnergyType type) {
+    /*
+     * Creates a Seam Carver with a mask marking pixels for removal or protection.
+     *
+     * @param file          Image file to carve.
+     * @param mask          Mask image. Red pixels are removed first, green pixels are protected.
+     * @param horizontal    If true, carve horizontal seams.
+     * @param type          The energy type to carve with.
+     * @return              The Seam Carver.
+     */
+    public SeamCarver create(File file, File mask, boolean horizontal, EnergyType type) {
+        SeamCarver carver = this.create(file, horizontal, type);
+        int[][] values = Utils.readMask(mask);
+        if (horizontal) {
+            values = Utils.transpose(Utils.mirror(values));
+        }
+        carver.loadMask(values);
+        return carver;
+    }
+
+    /*
+     * Resumes a Seam Carver saved with SeamCarver.save.
+     *
+     * @param checkpoint    The checkpoint file.
+     * @return              The Seam Carver in the state it was saved in.
+     * @throws              IOException if the checkpoint could not be read.
+     */
+    public SeamCarver load(File checkpoint) throws IOException {
+        return Checkpoint.load(checkpoint);
+    }
+
+    SeamCarver create(int[][] image, boolean horizontal, EnergyType type) {
+        return this.create(image, horizontal, type, ProgressListener.NONE);
+    }
+
+    /*
+     * Creates a Seam Carver and reports each step of the build to the given listener.
+     * Horizontal Seam Carvers mirror "image" in place.
+     *
+     * @param image         2D image array where each int represents the RGB pixel.
+     * @param horizontal    If true, carve horizontal seams.
+     * @param type          The energy type to carve with.
+     * @param listener      The listener to report progress to.
+     * @return              The Seam Carver.
+     */
+    SeamCarver create(int[][] image, boolean horizontal, EnergyType type, ProgressListener listener) {
         if (horizontal) {
             image = Utils.transpose(Utils.mirror(image));
         }
         switch (type) {
             case BACKWARD:
-                return new SeamCarverBackward(image);
+                return new SeamCarverBackward(image, listener);
             case FORWARD:
-                return new SeamCarverForward(image);
+                return new SeamCarverForward(image, listener);
             default:
                 throw new IllegalArgumentException("Invalid EnergyType");
         }
@@ -3,7 +3,9 @@
  * Alex Eidt
  */
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 /*
  * Implements the Seam Carving algorithm using forward energy.
@@ -11,10 +13,14 @@ import java.util.ArrayList;
 public class SeamCarverForward extends SeamCarverBase implements SeamCarver {
 
     // Used as a cache to keep track of the minimum error created by removing a seam.
-    private final int[][] minimums;
+    private int[][] minimums;
 
     public SeamCarverForward(int[][] image) {
-        super(image);
+        this(image, ProgressListener.NONE);
+    }
+
+    public SeamCarverForward(int[][] image, ProgressListener listener) {
+        super(image, listener);
         int[][] gray = Utils.grayscale(image);
         // The energy map for Forward Energy carving is just the grayscale version of
         // the original image.
@@ -31,38 +37,44 @@ public class SeamCarverForward extends SeamCarverBase implements SeamCarver {
             }
         });
 
+        listener.progress("Computing energy", 2, BUILD_STEPS);
         this.minimums = new int[this.height][this.width];
         this.energyMap();
+        listener.progress("Building energy map", 3, BUILD_STEPS);
     }
 
-    public boolean add(boolean highlight, int color) {
-        boolean valid = super.add(highlight, color);
-        if (valid) this.energyMap();
-        return valid;
+    // Resumes a Seam Carver from a checkpoint. See Checkpoint.load.
+    SeamCarverForward(Checkpoint checkpoint) throws IOException {
+        super(checkpoint);
+        this.minimums = new int[this.height][checkpoint.capacity];
     }
 
-    public boolean remove(boolean highlight, int color) {
-        boolean valid = super.remove(highlight, color);
-        if (valid) this.energyMap();
-        return valid;
+    protected void ensureCapacity(int width) {
+        super.ensureCapacity(width);
+        if (this.minimums[0].length < width) {
+            this.minimums = new int[this.height][width];
+        }
     }
 
     /*
      * Creates the energy map from the gradient image.
      * Learn more: https://github.com/axu2/improved-seam-carving
      */
-    private void energyMap() {
+    protected void energyMap() {
         // Initialize first row of energy map.
-        for (int w = 0; w < this.width; w++) {
+        for (int w = this.start(0); w < this.end(0); w++) {
             int left = Utils.mod(w - 1, this.width);
             int right = Utils.mod(w + 1, this.width);
 
             int cU = Math.abs(this.energy.get(0).get(right) - this.energy.get(0).get(left));
-            this.minimums[0][w] = 0;
-            this.map[0][w] = cU;
+            int bias = this.bias(0, w);
+            this.minimums[0][w] = bias;
+            this.map[0][w] = cU + bias;
         }
         for (int h = 1; h < this.height; h++) {
-            for (int w = 0; w < this.width; w++) {
+            if (this.cancelled(h)) return;
+            int start = this.start(h - 1), end = this.end(h - 1);
+            for (int w = this.start(h); w < this.end(h); w++) {
                 int left = Utils.mod(w - 1, this.width);
                 int right = Utils.mod(w + 1, this.width);
 
@@ -70,11 +82,17 @@ public class SeamCarverForward extends SeamCarverBase implements SeamCarver {
                 int cL = Math.abs(this.energy.get(h - 1).get(w) - this.energy.get(h).get(left)) + cU;
                 int cR = Math.abs(this.energy.get(h - 1).get(w) - this.energy.get(h).get(right)) + cU;
 
-                int mU = this.minimums[h - 1][w] + cU;
-                int mL = this.minimums[h - 1][left] + cL;
-                int mR = this.minimums[h - 1][right] + cR;
+                // Pixels outside of the search window of the previous row are unreachable.
+                int mU = this.reach(h - 1, w, start, end, cU);
+                int mL = this.reach(h - 1, left, start, end, cL);
+                int mR = this.reach(h - 1, right, start, end, cR);
 
                 int min = Utils.min(mU, mL, mR);
+                if (min == INF) {
+                    this.minimums[h][w] = INF;
+                    this.map[h][w] = INF;
+                    continue;
+                }
                 int cMin;
                 if (min == mU) {
                     cMin = cU;
@@ -84,9 +102,42 @@ public class SeamCarverForward extends SeamCarverBase implements SeamCarver {
                     cMin = cR;
                 }
 
-                this.minimums[h][w] = min;
-                this.map[h][w] = cMin;
+                int bias = this.bias(h, w);
+                this.minimums[h][w] = clamp((long) min + bias);
+                this.map[h][w] = cMin + bias;
             }
         }
     }
+
+    /*
+     * Returns the forward energy of stepping onto a pixel: the cost of the new edges
+     * created by removing it, coming from the given column of the row above.
+     */
+    @Override
+    protected int cost(int h, int w, int previous) {
+        List<Integer> row = this.energy.get(h);
+        int left = Utils.mod(w - 1, this.width);
+        int right = Utils.mod(w + 1, this.width);
+        int cost = Math.abs(row.get(right) - row.get(left));
+        if (h > 0 && previous != w) {
+            int above = this.energy.get(h - 1).get(w);
+            cost += Math.abs(above - row.get(previous < w ? left : right));
+        }
+        return cost + this.bias(h, w);
+    }
+
+    /*
+     * Finds the cost of reaching the next row from the given pixel.
+     *
+     * @param h         Row of the pixel.
+     * @param w         Column of the pixel.
+     * @param start     First column of the search window of row "h".
+     * @param end       Column after the last column of the search window of row "h".
+     * @param cost      Cost of the step into the next row.
+     * @return          The accumulated cost, or INF if the pixel is unreachable.
+     */
+    private int reach(int h, int w, int start, int end, int cost) {
+        if (w < start || w >= end || this.minimums[h][w] == INF) return INF;
+        return clamp((long) this.minimums[h][w] + cost);
+    }
 }
@@ -0,0 +1,320 @@
+/*
+ * SeamCarverMapped
+ * Alex Eidt
+ * Out-of-core Seam Carving for images that do not fit into memory.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Implements backward energy Seam Carving with the pixels, energy and energy map
+ * stored in memory mapped files. The energy, the energy map and the removal of
+ * seams all stream over the rows of the image, so only a few rows are ever held
+ * on the heap. Removed seams are kept in a file as well, so they can be added back.
+ * The image is read from and written to raw images (see RawImage).
+ */
+public class SeamCarverMapped implements Closeable {
+    // Height of the image.
+    private final int height;
+    // Width of the image.
+    private int width;
+    // The pixels of the image. Rows keep the original width, only the first "width" columns are used.
+    private final MappedStore pixels;
+    // The "energy" image to use.
+    private final MappedStore energy;
+    // The energy map used to quickly compute new seams.
+    private final MappedStore map;
+    // Stores the indices and values of the seams that were removed from the image.
+    private final File historyFile;
+    private final FileChannel history;
+    // Number of removed seams stored in "history".
+    private int removed;
+    // Buffer for a single removed seam. Holds the index, pixel and energy of every row.
+    private final ByteBuffer record;
+    // Set when the energy map no longer matches the energy and must be rebuilt before the next seam.
+    private boolean stale;
+    // Scratch rows.
+    private final int[] row, below;
+
+    /*
+     * Creates a Seam Carver for the given raw image.
+     *
+     * @param input     The raw image to carve.
+     * @param directory The directory to keep the memory mapped files in.
+     * @throws          IOException if the image could not be read or the files could not be created.
+     */
+    public SeamCarverMapped(File input, File directory) throws IOException {
+        int[] dimensions = RawImage.dimensions(input);
+        this.width = dimensions[0];
+        this.height = dimensions[1];
+        int stride = this.width;
+        this.pixels = new MappedStore(File.createTempFile("karve", ".pixels", directory), this.height, stride);
+        this.energy = new MappedStore(File.createTempFile("karve", ".energy", directory), this.height, stride);
+        this.map = new MappedStore(File.createTempFile("karve", ".map", directory), this.height, stride);
+        this.historyFile = File.createTempFile("karve", ".seams", directory);
+        this.history = FileChannel.open(this.historyFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.record = ByteBuffer.allocateDirect(this.height * 12);
+        this.row = new int[stride + 2];
+        this.below = new int[stride + 2];
+
+        // The pixels are stored exactly as in the raw image, so they are copied over directly.
+        try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            long size = (long) this.height * stride * 4;
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(RawImage.HEADER + position, size - position, this.pixels.getChannel());
+            }
+        }
+
+        this.sobel();
+        this.energyMap();
+    }
+
+    // Returns the width of the image.
+    public int getWidth() {
+        return this.width;
+    }
+
+    // Returns the height of the image.
+    public int getHeight() {
+        return this.height;
+    }
+
+    /*
+     * Computes the energy image with the sobel filter. Only three grayscale rows are
+     * kept in memory at a time.
+     */
+    private void sobel() {
+        int[] above = new int[this.width + 2];
+        int[] current = new int[this.width + 2];
+        int[] next = new int[this.width + 2];
+        int[] result = new int[this.width];
+        this.grayscale(0, current);
+        System.arraycopy(current, 0, above, 0, current.length);
+        for (int h = 0; h < this.height; h++) {
+            this.grayscale(Utils.min(h + 1, this.height - 1), next);
+            for (int w = 0; w < this.width; w++) {
+                result[w] = Utils.sobel(above, current, next, w + 1);
+            }
+            this.energy.write(h, 0, result, 0, this.width);
+            int[] temp = above;
+            above = current;
+            current = next;
+            next = temp;
+        }
+    }
+
+    /*
+     * Reads a row of the image as grayscale values, edge padded by one pixel.
+     *
+     * @param h         The row to read.
+     * @param gray      The array to store the padded row in.
+     */
+    private void grayscale(int h, int[] gray) {
+        this.pixels.read(h, 0, gray, 1, this.width);
+        for (int w = 1; w <= this.width; w++) {
+            gray[w] = Utils.gray(gray[w]);
+        }
+        gray[0] = gray[1];
+        gray[this.width + 1] = gray[this.width];
+    }
+
+    /*
+     * Creates the energy map from the gradient image, streaming from the last
+     * row to the first.
+     */
+    private void energyMap() {
+        int[] row = this.row, below = this.below;
+        int last = this.height - 1;
+        this.energy.read(last, 0, below, 0, this.width);
+        this.map.write(last, 0, below, 0, this.width);
+        for (int h = last - 1; h >= 0; h--) {
+            this.energy.read(h, 0, row, 0, this.width);
+            row[0] += Utils.min(below[0], below[1]);
+            int w;
+            for (w = 1; w < this.width - 1; w++) {
+                row[w] += Utils.min(below[w - 1], below[w], below[w + 1]);
+            }
+            row[w] += Utils.min(below[w - 1], below[w]);
+            this.map.write(h, 0, row, 0, this.width);
+            int[] temp = below;
+            below = row;
+            row = temp;
+        }
+        this.stale = false;
+    }
+
+    /*
+     * Remove "count" seams from the image.
+     *
+     * @param count     Number of seams to remove.
+     * @return          The number of seams that were actually removed.
+     * @throws          IOException if the seams could not be stored.
+     */
+    public int remove(int count) throws IOException {
+        int index = 0;
+        while (index < count && this.remove()) index++;
+        return index;
+    }
+
+    /*
+     * Removes the next seam from the image.
+     *
+     * @return          true if seam could be removed, false otherwise.
+     * @throws          IOException if the seam could not be stored.
+     */
+    public boolean remove() throws IOException {
+        if (this.width == 2) return false;
+        if (this.stale) this.energyMap();
+
+        // Find the minimum value in the first row of the energy map and follow
+        // the seam down through the rows.
+        this.map.read(0, 0, this.row, 0, this.width);
+        int minIndex = Utils.argmin(this.row, this.width);
+        this.record.clear();
+        for (int h = 0; h < this.height; h++) {
+            if (h > 0) {
+                int start = Utils.max(minIndex - 1, 0), end = Utils.min(minIndex + 1, this.width - 1);
+                if (start == minIndex - 1 && end == minIndex + 1) {
+                    // Ties go to the left neighbour first, then the right one, then straight
+                    // down, as in SeamCarverBase.
+                    int left = this.map.get(h, start), center = this.map.get(h, minIndex), right = this.map.get(h, end);
+                    int minValue = Utils.min(left, center, right);
+                    if (left == minValue) minIndex = start;
+                    else if (right == minValue) minIndex = end;
+                } else {
+                    // At the edge of the image, ties go to the leftmost column.
+                    int next = start;
+                    for (int w = start + 1; w <= end; w++) {
+                        if (this.map.get(h, w) < this.map.get(h, next)) next = w;
+                    }
+                    minIndex = next;
+                }
+            }
+            this.record.putInt(minIndex);
+            this.record.putInt(this.pixels.get(h, minIndex));
+            this.record.putInt(this.energy.get(h, minIndex));
+            // Shift the rest of the row to the left over the removed pixel.
+            int tail = this.width - minIndex - 1;
+            this.pixels.read(h, minIndex + 1, this.row, 0, tail);
+            this.pixels.write(h, minIndex, this.row, 0, tail);
+            this.energy.read(h, minIndex + 1, this.row, 0, tail);
+            this.energy.write(h, minIndex, this.row, 0, tail);
+        }
+
+        this.record.flip();
+        long position = (long) this.removed * this.record.capacity();
+        while (this.record.hasRemaining()) {
+            position += this.history.write(this.record, position);
+        }
+        this.removed++;
+        this.width--;
+        this.stale = true;
+        return true;
+    }
+
+    /*
+     * Adds "count" seams back to the image.
+     *
+     * @param count     Number of seams to add.
+     * @return          The number of seams that were actually added.
+     * @throws          IOException if the seams could not be read.
+     */
+    public int add(int count) throws IOException {
+        int index = 0;
+        while (index < count && this.add()) index++;
+        return index;
+    }
+
+    /*
+     * Adds the most recently removed seam back onto the image.
+     *
+     * @return          true if seam could be added, false otherwise.
+     * @throws          IOException if the seam could not be read.
+     */
+    public boolean add() throws IOException {
+        if (this.removed == 0) return false;
+        this.removed--;
+        this.record.clear();
+        long position = (long) this.removed * this.record.capacity();
+        while (this.record.hasRemaining()) {
+            position += this.history.read(this.record, position);
+        }
+        this.record.flip();
+        for (int h = 0; h < this.height; h++) {
+            int index = this.record.getInt();
+            int pixel = this.record.getInt();
+            int energy = this.record.getInt();
+            // Shift the rest of the row to the right to make room for the pixel.
+            int tail = this.width - index;
+            this.pixels.read(h, index, this.row, 0, tail);
+            this.pixels.write(h, index + 1, this.row, 0, tail);
+            this.pixels.put(h, index, pixel);
+            this.energy.read(h, index, this.row, 0, tail);
+            this.energy.write(h, index + 1, this.row, 0, tail);
+            this.energy.put(h, index, energy);
+        }
+        this.width++;
+        this.stale = true;
+        return true;
+    }
+
+    /*
+     * Writes the current image to a raw image, one row at a time.
+     *
+     * @param output    The raw image file to write.
+     * @throws          IOException if the file could not be written.
+     */
+    public void write(File output) throws IOException {
+        output.delete();
+        try (FileChannel channel = FileChannel.open(
+                output.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE
+        )) {
+            RawImage.writeHeader(channel, this.width, this.height);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(this.width * 4);
+            for (int h = 0; h < this.height; h++) {
+                this.pixels.read(h, 0, this.row, 0, this.width);
+                buffer.clear();
+                buffer.asIntBuffer().put(this.row, 0, this.width);
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        }
+    }
+
+    // Closes and deletes all memory mapped files.
+    public void close() throws IOException {
+        this.pixels.close();
+        this.energy.close();
+        this.map.close();
+        this.history.close();
+        this.historyFile.delete();
+    }
+
+    /*
+     * Carves a raw image out of core.
+     * Usage: java SeamCarverMapped <input.raw> <output.raw> <seams> [work directory]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: java SeamCarverMapped <input.raw> <output.raw> <seams> [work directory]");
+            return;
+        }
+        File directory = new File(args.length > 3 ? args[3] : System.getProperty("java.io.tmpdir"));
+        directory.mkdirs();
+        long start = System.nanoTime();
+        try (SeamCarverMapped carver = new SeamCarverMapped(new File(args[0]), directory)) {
+            int count = carver.remove(Integer.parseInt(args[2]));
+            carver.write(new File(args[1]));
+            Runtime runtime = Runtime.getRuntime();
+            System.out.println(count + " seams carved in " + (System.nanoTime() - start) / 1000000 + " ms.");
+            System.out.println("Heap used: " + (runtime.totalMemory() - runtime.freeMemory()) / (1 << 20) + " MB.");
+        }
+    }
+}
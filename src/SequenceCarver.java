@@ -0,0 +1,160 @@
+/*
+ * SequenceCarver
+ * Alex Eidt
+ * Carves a sequence of frames (such as a short video clip) so that the seams
+ * stay stable from one frame to the next.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SequenceCarver {
+    // Default number of columns on either side of the previous frame's seam to search.
+    public static final int RADIUS = 4;
+
+    /*
+     * Carves every PNG frame in the input directory and writes the carved frames to the
+     * output directory under the same names. Frames are ordered by the number in their
+     * file name.
+     * The first frame is carved with a full seam search. Every seam of the following
+     * frames is searched for only within "radius" columns of the same seam in the previous
+     * frame. Each frame hands its seams to the next one as soon as they are found, so
+     * consecutive frames are carved concurrently, one seam apart. At most "window" frames
+     * are held in memory at once. All frames must have the same size.
+     *
+     * @param input         Directory containing the numbered frames.
+     * @param output        Directory to write the carved frames to.
+     * @param count         Number of seams to remove from each frame.
+     * @param radius        Search radius around the previous frame's seams.
+     * @param window        Maximum number of frames carved at once.
+     * @param horizontal    If true, carve horizontal seams.
+     * @param type          The energy type to carve with.
+     * @return              The number of frames that were carved.
+     * @throws              IllegalArgumentException if a frame can not be read or differs in size.
+     */
+    public static int carve(
+            File input,
+            File output,
+            int count,
+            int radius,
+            int window,
+            boolean horizontal,
+            EnergyType type
+    ) {
+        File[] frames = input.listFiles((dir, name) -> name.toLowerCase().endsWith(".png"));
+        if (frames == null || frames.length == 0) return 0;
+        Arrays.sort(frames, Comparator.comparingLong(SequenceCarver::frameNumber).thenComparing(File::getName));
+        // Seams are passed on between frames by column, so every frame must have the same size.
+        int[] size = dimensions(frames[0]);
+        for (File frame : frames) {
+            int[] dimensions = dimensions(frame);
+            if (!Arrays.equals(dimensions, size)) {
+                throw new IllegalArgumentException(
+                        frame.getName() + " is " + dimensions[0] + " x " + dimensions[1] + ", but "
+                        + frames[0].getName() + " is " + size[0] + " x " + size[1]
+                );
+            }
+        }
+        output.mkdirs();
+
+        SeamCarverFactory factory = new SeamCarverFactory();
+        ExecutorService executor = Executors.newFixedThreadPool(Utils.max(window, 1));
+        Future<?>[] tasks = new Future<?>[frames.length];
+        // Seams flow from each frame to the next through these queues.
+        BlockingQueue<int[]> previous = null;
+        for (int i = 0; i < frames.length; i++) {
+            File frame = frames[i];
+            BlockingQueue<int[]> guides = previous;
+            BlockingQueue<int[]> next = i + 1 < frames.length ? new ArrayBlockingQueue<>(Utils.max(count, 1)) : null;
+            tasks[i] = executor.submit(() -> {
+                SeamCarver carver = factory.create(frame, horizontal, type);
+                carver.setUpdate(false);
+                boolean valid = true;
+                for (int seam = 0; seam < count; seam++) {
+                    int[] guide = guides == null ? null : guides.take();
+                    if (valid) {
+                        valid = guide == null
+                                ? carver.remove(false, 0)
+                                : carver.remove(guide, radius, false, 0);
+                    }
+                    // Frames have the same size, so the previous seam is passed on if this
+                    // frame runs out of seams and the chain is never broken.
+                    if (next != null) next.put(valid ? carver.getSeam() : guide);
+                }
+                carver.updateImage(false, 0);
+                Utils.writeImage(
+                        carver.getImage(),
+                        carver.getWidth(),
+                        carver.getHeight(),
+                        horizontal,
+                        new File(output, frame.getName()).getPath()
+                );
+                return null;
+            });
+            previous = next;
+        }
+
+        int carved = 0;
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+                carved++;
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to carve frame " + frames[carved].getName(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return carved;
+    }
+
+    // Returns the width and height of a frame.
+    private static int[] dimensions(File frame) {
+        try {
+            return ImageFiles.dimensions(frame);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read frame " + frame.getName(), e);
+        }
+    }
+
+    // Returns the frame number in the given file's name, or -1 if there is none.
+    private static long frameNumber(File file) {
+        String digits = file.getName().replaceAll("\\D+", "");
+        return digits.isEmpty() || digits.length() > 18 ? -1 : Long.parseLong(digits);
+    }
+
+    /*
+     * Usage: java SequenceCarver <input dir> <output dir> <seams> [radius] [h|v] [backward|forward]
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: java SequenceCarver <input dir> <output dir> <seams> [radius] [h|v] [backward|forward]");
+            return;
+        }
+        int count = Integer.parseInt(args[2]);
+        int radius = args.length > 3 ? Integer.parseInt(args[3]) : RADIUS;
+        boolean horizontal = args.length > 4 && args[4].equalsIgnoreCase("h");
+        EnergyType type = args.length > 5 && args[5].equalsIgnoreCase("forward")
+                ? EnergyType.FORWARD
+                : EnergyType.BACKWARD;
+        int window = Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        int frames;
+        try {
+            frames = carve(new File(args[0]), new File(args[1]), count, radius, window, horizontal, type);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        long time = System.nanoTime() - start;
+        System.out.println(frames + " frames carved in " + time / 1000000 + " ms.");
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * StripCarver
+ * Alex Eidt
+ * Approximate Seam Carving for very wide images. The image is split into
+ * vertical strips which are carved independently and in parallel.
+ */
+
+import java.io.File;
+import java.util.List;
+
+public class StripCarver {
+    // Default number of columns on each side of a strip that give the carver context.
+    public static final int GUARD = 8;
+
+    /*
+     * Carves vertical seams out of the image by splitting it into strips. Each strip is
+     * carved by its own Seam Carver, with guard bands borrowed from its neighbours on
+     * both sides. The guard bands are protected, so seams only pass through the strip
+     * itself. Seams are given to each strip in proportion to its low energy mass.
+     *
+     * @param image     The image to carve. Each int represents an RGB pixel.
+     * @param count     Number of seams to remove.
+     * @param strips    Number of strips to split the image into.
+     * @param guard     Width of the guard bands.
+     * @param type      The energy type to carve with.
+     * @return          The carved image.
+     */
+    public static int[][] carve(int[][] image, int count, int strips, int guard, EnergyType type) {
+        int height = image.length, width = image[0].length;
+        strips = Utils.max(Utils.min(strips, width / 3), 1);
+        int[] bounds = new int[strips + 1];
+        for (int i = 0; i <= strips; i++) {
+            bounds[i] = (int) ((long) i * width / strips);
+        }
+        int[] seams = allocate(lowEnergyMass(image, bounds), bounds, count);
+
+        int[][][] carved = new int[strips][][];
+        int total = strips;
+        // The cores are split between the strips, as every Seam Carver runs parallel loops of its own.
+        int threads = Utils.max(Utils.threads() / total, 1);
+        SeamCarverFactory factory = new SeamCarverFactory();
+        Utils.parallel((cpu, cpus) -> {
+            int previous = Utils.setThreads(threads);
+            try {
+                for (int i = cpu; i < total; i += cpus) {
+                    int start = Utils.max(bounds[i] - guard, 0);
+                    int end = Utils.min(bounds[i + 1] + guard, width);
+                    int left = bounds[i] - start, right = end - bounds[i + 1];
+
+                    int[][] strip = new int[height][end - start];
+                    int[][] mask = new int[height][end - start];
+                    for (int h = 0; h < height; h++) {
+                        System.arraycopy(image[h], start, strip[h], 0, end - start);
+                        for (int w = 0; w < left; w++) mask[h][w] = SeamCarver.MASK_PROTECT;
+                        for (int w = end - start - right; w < end - start; w++) mask[h][w] = SeamCarver.MASK_PROTECT;
+                    }
+
+                    SeamCarver carver = factory.create(strip, false, type);
+                    carver.loadMask(mask);
+                    carver.remove(seams[i], false, 0);
+
+                    int[] data = carver.getImage();
+                    int carverWidth = carver.getWidth();
+                    carved[i] = new int[height][carverWidth - left - right];
+                    for (int h = 0; h < height; h++) {
+                        System.arraycopy(data, h * carverWidth + left, carved[i][h], 0, carverWidth - left - right);
+                    }
+                }
+            } finally {
+                Utils.setThreads(previous);
+            }
+        });
+
+        // Stitch the strips back together.
+        int carvedWidth = 0;
+        for (int[][] strip : carved) carvedWidth += strip[0].length;
+        int[][] result = new int[height][carvedWidth];
+        Utils.parallel((cpu, cpus) -> {
+            for (int h = cpu; h < height; h += cpus) {
+                int offset = 0;
+                for (int[][] strip : carved) {
+                    System.arraycopy(strip[h], 0, result[h], offset, strip[h].length);
+                    offset += strip[h].length;
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /*
+     * Measures how much low energy content each strip has. Every pixel with an energy
+     * below the mean of the image adds its distance to the mean.
+     *
+     * @param image     The image to measure.
+     * @param bounds    Column boundaries of the strips.
+     * @return          The low energy mass of each strip.
+     */
+    private static long[] lowEnergyMass(int[][] image, int[] bounds) {
+        int height = image.length, width = image[0].length;
+        List<List<Integer>> energy = Utils.sobel(image).subList(0, height);
+        long sum = 0;
+        for (List<Integer> row : energy) {
+            for (int value : row) sum += value;
+        }
+        long mean = sum / ((long) height * width);
+
+        long[] mass = new long[bounds.length - 1];
+        for (int i = 0; i < mass.length; i++) {
+            for (List<Integer> row : energy) {
+                for (int w = bounds[i]; w < bounds[i + 1]; w++) {
+                    mass[i] += Math.max(mean - row.get(w), 0);
+                }
+            }
+        }
+        return mass;
+    }
+
+    /*
+     * Splits "count" seams between the strips in proportion to their mass. No strip
+     * is carved down to less than a single column.
+     *
+     * @param mass      The low energy mass of each strip.
+     * @param bounds    Column boundaries of the strips.
+     * @param count     Total number of seams to remove.
+     * @return          The number of seams to remove from each strip.
+     */
+    private static int[] allocate(long[] mass, int[] bounds, int count) {
+        int strips = mass.length;
+        int[] seams = new int[strips];
+        int[] capacity = new int[strips];
+        int available = 0;
+        for (int i = 0; i < strips; i++) {
+            capacity[i] = bounds[i + 1] - bounds[i] - 1;
+            available += capacity[i];
+        }
+        count = Utils.min(count, available);
+
+        // Hand out seams in rounds, so that the seams of full strips go to the others.
+        while (count > 0) {
+            long total = 0;
+            for (int i = 0; i < strips; i++) {
+                if (seams[i] < capacity[i]) total += mass[i] + 1;
+            }
+            int given = 0;
+            for (int i = 0; i < strips && given < count; i++) {
+                if (seams[i] >= capacity[i]) continue;
+                int share = (int) Math.max((mass[i] + 1) * count / total, 1);
+                share = Utils.min(Utils.min(share, capacity[i] - seams[i]), count - given);
+                seams[i] += share;
+                given += share;
+            }
+            count -= given;
+        }
+        return seams;
+    }
+
+    /*
+     * Reads the given image and carves it with strip-parallel carving.
+     *
+     * @param file          Image file to carve.
+     * @param count         Number of seams to remove.
+     * @param strips        Number of strips to split the image into.
+     * @param horizontal    If true, carve horizontal seams.
+     * @param type          The energy type to carve with.
+     * @return              The carved image, in the orientation of the carver.
+     */
+    public static int[][] carve(File file, int count, int strips, boolean horizontal, EnergyType type) {
+        int[][] image = Utils.readImage(file);
+        if (horizontal) {
+            image = Utils.transpose(Utils.mirror(image));
+        }
+        return carve(image, count, strips, GUARD, type);
+    }
+
+    /*
+     * Compares strip-parallel carving against the exact global carve and prints
+     * a quality vs. speed report.
+     * Usage: java StripCarver <image> <seams> <strips> [backward|forward]
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: java StripCarver <image> <seams> <strips> [backward|forward]");
+            return;
+        }
+        int[][] image = Utils.readImage(args[0]);
+        int count = Integer.parseInt(args[1]);
+        int strips = Integer.parseInt(args[2]);
+        EnergyType type = args.length > 3 && args[3].equalsIgnoreCase("forward")
+                ? EnergyType.FORWARD
+                : EnergyType.BACKWARD;
+
+        long start = System.nanoTime();
+        SeamCarver carver = new SeamCarverFactory().create(image, false, type);
+        int removed = carver.remove(count, false, 0);
+        long exactTime = System.nanoTime() - start;
+        int[][] exact = new int[carver.getHeight()][carver.getWidth()];
+        for (int h = 0; h < exact.length; h++) {
+            System.arraycopy(carver.getImage(), h * carver.getWidth(), exact[h], 0, carver.getWidth());
+        }
+
+        start = System.nanoTime();
+        int[][] approximate = carve(image, removed, strips, GUARD, type);
+        long stripTime = System.nanoTime() - start;
+
+        // The carve that keeps more of the image's energy removed less visible content.
+        long exactEnergy = totalEnergy(exact), stripEnergy = totalEnergy(approximate);
+        System.out.println("Image:            " + image[0].length + " x " + image.length);
+        System.out.println("Seams removed:    " + removed);
+        System.out.println("Exact time:       " + exactTime / 1000000 + " ms");
+        System.out.println("Strip time:       " + stripTime / 1000000 + " ms (" + strips + " strips)");
+        System.out.printf("Speedup:          %.2fx%n", (double) exactTime / stripTime);
+        System.out.println("Exact energy:     " + exactEnergy);
+        System.out.println("Strip energy:     " + stripEnergy);
+        System.out.printf("Energy retained:  %.2f%% of exact%n", 100.0 * stripEnergy / exactEnergy);
+    }
+
+    // Returns the total sobel energy of the image.
+    private static long totalEnergy(int[][] image) {
+        long total = 0;
+        for (List<Integer> row : Utils.sobel(image).subList(0, image.length)) {
+            for (int value : row) total += value;
+        }
+        return total;
+    }
+}
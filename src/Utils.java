@@ -2,20 +2,20 @@
  * Utils
  * Alex Eidt
  * Contains a collection of useful (and unrelated) functions
- * for the Seam Carver.
+ * for the Seam Carver. Nothing here loads AWT: image files are handled by
+ * ImageFiles and screen helpers live in Display.
  */
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class Utils {
+    // Number of threads used by "parallel" on each calling thread. 0 uses all CPU cores.
+    private static final ThreadLocal<Integer> THREADS = ThreadLocal.withInitial(() -> 0);
+
     // Returns the minimum of "a", "b", and "c".
     public static int min(int a, int b, int c) {
         return (a < b) ? (a < c ? a : c) : (b < c ? b : c);
@@ -31,6 +31,11 @@ public class Utils {
         return a > b ? a : b;
     }
 
+    // Averages each 8-bit channel of the pixels "a" and "b".
+    public static int blend(int a, int b) {
+        return (a & b) + (((a ^ b) & 0xFEFEFEFE) >>> 1);
+    }
+
     // Modulus a % m.
     public static int mod(int a, int m) {
         return (a % m + m) % m;
@@ -40,13 +45,30 @@ public class Utils {
         void process(int cpu, int cpus);
     }
 
+    /*
+     * Sets the number of threads "parallel" uses when called from the current thread.
+     *
+     * @param threads   Number of threads. 0 or less uses all CPU cores.
+     * @return          The previous number of threads.
+     */
+    public static int setThreads(int threads) {
+        int previous = THREADS.get();
+        THREADS.set(max(threads, 0));
+        return previous;
+    }
+
+    // Returns the number of threads "parallel" uses when called from the current thread.
+    public static int threads() {
+        return THREADS.get() > 0 ? THREADS.get() : Runtime.getRuntime().availableProcessors();
+    }
+
     /*
      * Runs the given function in parallel on separate threads on all CPU cores.
      *
      * @param func      The function to run.
      */
     public static void parallel(ParallelFunc func) {
-        int cpus = Runtime.getRuntime().availableProcessors();
+        int cpus = threads();
 
         Thread[] threads = new Thread[cpus];
         for (int i = 0; i < cpus; i++) {
@@ -58,11 +80,27 @@ public class Utils {
             thread.start();
         }
 
-        try {
-            for (Thread thread : threads) {
-                thread.join();
+        // The threads share state with the caller, so always wait for all of them.
+        // An interrupt is passed on to the caller once they are done.
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
-        } catch (InterruptedException ignored) {}
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Returns the grayscale value of the given RGB pixel.
+    public static int gray(int pixel) {
+        int r = (pixel >> 16) & 0xFF;
+        int g = (pixel >> 8) & 0xFF;
+        int b = pixel & 0xFF;
+        return (3 * r + 4 * g + b) / 8;
     }
 
     /*
@@ -78,11 +116,7 @@ public class Utils {
         parallel((cpu, cpus) -> {
             for (int h = cpu; h < height; h += cpus) {
                 for (int w = 0; w < width; w++) {
-                    int pixel = image[h][w];
-                    int r = (pixel >> 16) & 0xFF;
-                    int g = (pixel >> 8) & 0xFF;
-                    int b = pixel & 0xFF;
-                    gray[h][w] = (3 * r + 4 * g + b) / 8;
+                    gray[h][w] = gray(image[h][w]);
                 }
             }
         });
@@ -98,9 +132,21 @@ public class Utils {
      * @return          An integer representing the index of the minimum value in "data".
      */
     public static int argmin(int[] data, int size) {
-        int index = 0;
-        int min = data[0];
-        for (int i = 1; i < size; i++) {
+        return argmin(data, 0, size);
+    }
+
+    /*
+     * Find the index of the minimum value in "data" between "start" and "end".
+     *
+     * @param data      The input array to find the minimum index of.
+     * @param start     The first index to consider.
+     * @param end       The index after the last index to consider.
+     * @return          An integer representing the index of the minimum value in "data".
+     */
+    public static int argmin(int[] data, int start, int end) {
+        int index = start;
+        int min = data[start];
+        for (int i = start + 1; i < end; i++) {
             if (data[i] < min) {
                 min = data[i];
                 index = i;
@@ -160,19 +206,7 @@ public class Utils {
         parallel((cpu, cpus) -> {
             for (int h = 1 + cpu; h < height - 1; h += cpus) {
                 for (int w = 1; w < width - 1; w++) {
-                    int sx = gray[h - 1][w - 1] -
-                            gray[h - 1][w + 1] +
-                            2 * gray[h][w - 1] -
-                            2 * gray[h][w + 1] +
-                            gray[h + 1][w - 1] -
-                            gray[h + 1][w - 1];
-                    int sy = gray[h - 1][w - 1] +
-                            2 * gray[h - 1][w] +
-                            gray[h - 1][w + 1] -
-                            gray[h + 1][w - 1] -
-                            2 * gray[h + 1][w] -
-                            gray[h + 1][w + 1];
-                    result.get(h - 1).add(Math.abs(sx) + Math.abs(sy));
+                    result.get(h - 1).add(sobel(gray[h - 1], gray[h], gray[h + 1], w));
                 }
             }
         });
@@ -180,6 +214,31 @@ public class Utils {
         return result;
     }
 
+    /*
+     * Applies the sobel filter to a single pixel of an edge padded grayscale image.
+     *
+     * @param above     The padded row above the pixel.
+     * @param row       The padded row of the pixel.
+     * @param below     The padded row below the pixel.
+     * @param w         Column of the pixel in the padded rows.
+     * @return          The gradient at the pixel.
+     */
+    public static int sobel(int[] above, int[] row, int[] below, int w) {
+        int sx = above[w - 1] -
+                above[w + 1] +
+                2 * row[w - 1] -
+                2 * row[w + 1] +
+                below[w - 1] -
+                below[w - 1];
+        int sy = above[w - 1] +
+                2 * above[w] +
+                above[w + 1] -
+                below[w - 1] -
+                2 * below[w] -
+                below[w + 1];
+        return Math.abs(sx) + Math.abs(sy);
+    }
+
     /*
      * Transposes the given image.
      * The transposition is cache-oblivious.
@@ -209,6 +268,71 @@ public class Utils {
         return result;
     }
 
+    /*
+     * Copies the given image.
+     *
+     * @param image     The image to copy.
+     * @return          The copy.
+     */
+    public static int[][] copy(int[][] image) {
+        int[][] result = new int[image.length][];
+        for (int h = 0; h < image.length; h++) {
+            result[h] = image[h].clone();
+        }
+        return result;
+    }
+
+    /*
+     * Flattens the given image into a single array, row by row.
+     *
+     * @param image     The image to flatten.
+     * @return          The flattened image.
+     */
+    public static int[] flatten(int[][] image) {
+        int height = image.length, width = image[0].length;
+        int[] result = new int[height * width];
+
+        parallel((cpu, cpus) -> {
+            for (int h = cpu; h < height; h += cpus) {
+                System.arraycopy(image[h], 0, result, h * width, width);
+            }
+        });
+
+        return result;
+    }
+
+    /*
+     * Downscales the image by averaging blocks of "factor" x "factor" pixels.
+     *
+     * @param image     The image to downscale. Each int represents an RGB pixel.
+     * @param factor    The downscaling factor.
+     * @return          The downscaled image.
+     */
+    public static int[][] downscale(int[][] image, int factor) {
+        int height = max(image.length / factor, 1), width = max(image[0].length / factor, 1);
+        int[][] result = new int[height][width];
+
+        parallel((cpu, cpus) -> {
+            for (int h = cpu; h < height; h += cpus) {
+                for (int w = 0; w < width; w++) {
+                    int r = 0, g = 0, b = 0, count = 0;
+                    for (int y = h * factor; y < min((h + 1) * factor, image.length); y++) {
+                        for (int x = w * factor; x < min((w + 1) * factor, image[0].length); x++) {
+                            int pixel = image[y][x];
+                            r += (pixel >> 16) & 0xFF;
+                            g += (pixel >> 8) & 0xFF;
+                            b += pixel & 0xFF;
+                            count++;
+                        }
+                    }
+                    result[h][w] = 0xFF000000 | (r / count) << 16 | (g / count) << 8 | (b / count);
+                }
+            }
+        });
+
+        return result;
+    }
+
     /*
      * Mirrors the image along the vertical axis.
      *
@@ -242,30 +366,6 @@ public class Utils {
         } catch (InterruptedException ignored) {}
     }
 
-    /*
-     * Finds the optimal scaling factor such that the display image will be
-     * approximately half the screen width and height.
-     *
-     * @param w         Width of Image.
-     * @param h         Height of Image.
-     * @return          Scaling factor.
-     */
-    public static int getDimensions(int w, int h) {
-        float width = (float) Toolkit.getDefaultToolkit().getScreenSize().width / 2f;
-        float height = (float) Toolkit.getDefaultToolkit().getScreenSize().height / 2f;
-        int scale = 1;
-        float max = 1000000f;
-        for (int i = 2; i < 21; i++) {
-            float tempH = Math.abs(height - ((float) h / i));
-            float tempW = Math.abs(width - ((float) w / i));
-            if (tempH + tempW < max) {
-                max = tempH + tempW;
-                scale = i;
-            }
-        }
-        return scale;
-    }
-
     /*
      * Joins the given list of files together to their full file path.
      *
@@ -283,67 +383,44 @@ public class Utils {
     }
 
     /*
-     * Writes the given integer array to an image.
+     * Writes the given integer array to an image file. See ImageFiles.writeImage.
      *
      * @param image         Flattened image as an integer array. Each int represents an RGB pixel.
      * @param width         The width of the image.
      * @param height        The height of the image.
      * @param horizontal    For use with horizontal seam carving.
      * @param filename      Image file name.
-     * @throws              IOException if the given image could not be created.
      */
-    public static void writeImage(
-            int[] image,
-            int width,
-            int height,
-            boolean horizontal,
-            String filename
-    ) {
-        File file = new File(filename);
-        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        if (horizontal) {
-            int index = 0;
-            for (int y = height - 1; y >= 0; y--) {
-                for (int x = 0; x < width; x++) {
-                    bufferedImage.setRGB(y, x, image[index++]);
-                }
-            }
-        } else {
-            bufferedImage.setRGB(0, 0, width, height, image, 0, width);
-        }
-        try {
-            ImageIO.write(bufferedImage, "PNG", file);
-        } catch (IOException ignored) {}
+    public static void writeImage(int[] image, int width, int height, boolean horizontal, String filename) {
+        ImageFiles.writeImage(image, width, height, horizontal, filename);
+    }
+
+    public static void writeImage(int[] image, int width, int height, boolean horizontal, String filename, int level) {
+        ImageFiles.writeImage(image, width, height, horizontal, filename, level);
     }
 
     /*
      * Reads an image into a 2D Integer array, where each int represents an RGB pixel.
+     * See ImageFiles.readImage.
      *
      * @param filename      Image file to read.
      * @return              2D Integer array.
      */
     public static int[][] readImage(String filename) {
-        return readImage(new File(filename));
+        return ImageFiles.readImage(new File(filename));
     }
 
     public static int[][] readImage(File file) {
-        try {
-            BufferedImage image = ImageIO.read(file);
-            int width = image.getWidth();
-            int height = image.getHeight();
-            int[][] pixels = new int[height][width];
-
-            parallel((cpu, cpus) -> {
-                for (int h = cpu; h < height; h += cpus) {
-                    for (int w = 0; w < width; w++) {
-                        pixels[h][w] = image.getRGB(w, h);
-                    }
-                }
-            });
+        return ImageFiles.readImage(file);
+    }
 
-            return pixels;
-        } catch (IOException e) {
-            return null;
-        }
+    /*
+     * Reads a mask image into a 2D Integer array of mask values. See ImageFiles.readMask.
+     *
+     * @param file          Mask image file to read.
+     * @return              2D Integer array of SeamCarver mask values.
+     */
+    public static int[][] readMask(File file) {
+        return ImageFiles.readMask(file);
     }
 }
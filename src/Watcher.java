@@ -0,0 +1,428 @@
+/*
+ * Watcher
+ * Alex Eidt
+ * Watches a directory and carves every image that is added to it or changed.
+ * A small index in the output directory remembers which files were carved, so
+ * restarting the watcher only carves files that changed while it was down.
+ */
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Watcher implements Closeable {
+    // Milliseconds a file has to stay unchanged before it is carved, so that files
+    // which are still being written are not picked up half way.
+    public static final long DEBOUNCE = 1000;
+    // Maximum number of images waiting to be carved. Watching pauses while the queue is full.
+    public static final int QUEUE = 64;
+    // Name of the index file in the output directory.
+    public static final String INDEX = ".karve-index";
+    // Extensions of the files that are carved.
+    private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".bmp", ".gif", ".raw", ".ppm", ".pam", ".pnm"};
+
+    /*
+     * A carved file as recorded in the index.
+     */
+    private static class Record {
+        // Size and last modified time of the input when it was carved.
+        final long size, modified;
+        // SHA-256 of the contents of the input.
+        final String hash;
+        // Name of the carved image in the output directory.
+        final String output;
+
+        Record(long size, long modified, String hash, String output) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.output = output;
+        }
+    }
+
+    /*
+     * An image waiting to be carved. Smaller images are carved first so that they are
+     * not held up behind large ones, and images of the same size in the order they came.
+     */
+    private class Job implements Runnable, Comparable<Job> {
+        final Path file;
+        final long size, modified, order;
+        final String hash;
+
+        Job(Path file, long size, long modified, String hash) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.order = sequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int compare = Long.compare(this.size, other.size);
+            return compare != 0 ? compare : Long.compare(this.order, other.order);
+        }
+
+        @Override
+        public void run() {
+            try {
+                carve(this);
+            } finally {
+                slots.release();
+            }
+        }
+    }
+
+    // The watched directory and the directory the carved images are written to.
+    private final Path input, output;
+    // Target size of the carved images.
+    private final int width, height;
+    // The energy type to carve with.
+    private final EnergyType type;
+    // Carves the queued images, smallest first.
+    private final ThreadPoolExecutor pool;
+    // Free places in the queue of the pool.
+    private final Semaphore slots;
+    // Gives every job its place in the queue.
+    private final AtomicLong sequence;
+    // Files with recent events, mapped to the time of the last event and their size then.
+    private final Map<Path, long[]> changed;
+    // Files the pool hands back to be looked at again. Only the watching thread touches "changed".
+    private final Queue<Path> rechecks;
+    // The index, by name of the input file.
+    private final Map<String, Record> index;
+    // Names of the carved images in the output directory, by hash of their input.
+    private final Map<String, String> hashes;
+    // Files waiting for an image with the same contents that is being carved, by hash.
+    private final Map<String, List<Path>> duplicates;
+    // The index file. New records are appended to it.
+    private final BufferedWriter indexWriter;
+
+    /*
+     * Creates a watcher. Nothing is carved until "run" is called.
+     *
+     * @param input     The directory to watch.
+     * @param output    The directory to write the carved images to.
+     * @param width     Target width of the carved images.
+     * @param height    Target height of the carved images.
+     * @param type      The energy type to carve with.
+     * @param threads   Number of images carved at the same time.
+     * @throws          IOException if the index could not be read.
+     */
+    public Watcher(File input, File output, int width, int height, EnergyType type, int threads) throws IOException {
+        this.input = input.toPath().toAbsolutePath();
+        this.output = output.toPath().toAbsolutePath();
+        this.width = width;
+        this.height = height;
+        this.type = type;
+        this.sequence = new AtomicLong();
+        this.changed = new HashMap<>();
+        this.rechecks = new ConcurrentLinkedQueue<>();
+        this.index = new HashMap<>();
+        this.hashes = new HashMap<>();
+        this.duplicates = new HashMap<>();
+        this.slots = new Semaphore(QUEUE + threads);
+        this.pool = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "Karve watcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+        Files.createDirectories(this.output);
+
+        // Read the index and write it back without the records that were replaced since.
+        Path indexFile = this.output.resolve(INDEX);
+        if (Files.exists(indexFile)) {
+            for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5) continue;
+                Record record = new Record(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], fields[4]);
+                this.index.put(fields[0], record);
+                this.hashes.put(record.hash, record.output);
+            }
+        }
+        Path temp = this.output.resolve(INDEX + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Record> entry : this.index.entrySet()) {
+                writer.write(line(entry.getKey(), entry.getValue()));
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.indexWriter = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    /*
+     * Carves every image that changed since the index was written, then keeps carving
+     * images as they are added or changed until the thread is interrupted.
+     *
+     * @throws          IOException if the directory could not be watched.
+     * @throws          InterruptedException when the watcher is stopped.
+     */
+    public void run() throws IOException, InterruptedException {
+        try (WatchService watch = FileSystems.getDefault().newWatchService()) {
+            this.input.register(
+                    watch,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY
+            );
+            this.scan();
+            while (true) {
+                WatchKey key = watch.poll(DEBOUNCE / 4, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Events were lost, so look at every file again.
+                            this.scan();
+                        } else {
+                            this.touch(this.input.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+                this.dispatch();
+            }
+        }
+    }
+
+    // Stops carving and closes the index.
+    @Override
+    public void close() throws IOException {
+        this.pool.shutdownNow();
+        synchronized (this.index) {
+            this.indexWriter.close();
+        }
+    }
+
+    // Marks every image in the watched directory as changed. Unchanged images are skipped by "dispatch".
+    private void scan() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.input)) {
+            for (Path file : files) this.touch(file);
+        }
+    }
+
+    // Records an event for a file.
+    private void touch(Path file) {
+        if (!isImage(file)) return;
+        long size = file.toFile().length();
+        this.changed.put(file, new long[] {System.currentTimeMillis(), size});
+    }
+
+    /*
+     * Queues the files that did not change for DEBOUNCE milliseconds. Files that are
+     * in the index with the same size and modification time are skipped, as are files
+     * with the same contents as an image that was already carved.
+     */
+    private void dispatch() throws InterruptedException {
+        for (Path file; (file = this.rechecks.poll()) != null;) {
+            this.changed.put(file, new long[] {0, file.toFile().length()});
+        }
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Path, long[]>> iterator = this.changed.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry<Path, long[]> entry = iterator.next();
+            long[] seen = entry.getValue();
+            if (now - seen[0] < DEBOUNCE) continue;
+            Path file = entry.getKey();
+            File handle = file.toFile();
+            long size = handle.length(), modified = handle.lastModified();
+            if (size != seen[1]) {
+                // Still being written, even if no event arrived.
+                entry.setValue(new long[] {now, size});
+                continue;
+            }
+            iterator.remove();
+            if (!handle.isFile()) continue;
+
+            String name = file.getFileName().toString();
+            String hash;
+            synchronized (this.index) {
+                Record record = this.index.get(name);
+                if (record != null && record.size == size && record.modified == modified) continue;
+            }
+            try {
+                hash = hash(file);
+            } catch (IOException e) {
+                continue;
+            }
+            synchronized (this.index) {
+                // Images with the same contents as one that is being carved wait for it.
+                List<Path> waiting = this.duplicates.get(hash);
+                if (waiting != null) {
+                    waiting.add(file);
+                    continue;
+                }
+                String carved = this.hashes.get(hash);
+                if (carved != null && Files.exists(this.output.resolve(carved))) {
+                    this.copy(file, size, modified, hash, carved);
+                    continue;
+                }
+                this.duplicates.put(hash, new ArrayList<>());
+            }
+            this.slots.acquire();
+            this.pool.execute(new Job(file, size, modified, hash));
+        }
+    }
+
+    /*
+     * Carves an image and writes it to the output directory. Runs on the pool.
+     *
+     * @param job       The image to carve.
+     */
+    private void carve(Job job) {
+        String name = job.file.getFileName().toString();
+        String carved = carved(name);
+        boolean done = false;
+        try {
+            Karve.Result result = Karve.image(job.file.toFile())
+                    .size(this.width, this.height)
+                    .energy(this.type)
+                    .threads(1)
+                    .carve();
+            // Write under a temporary name first, so the output only appears once complete.
+            Path part = this.output.resolve("." + carved + ".part.png");
+            try {
+                result.write(part.toFile());
+                Files.move(part, this.output.resolve(carved), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                done = true;
+            } finally {
+                Files.deleteIfExists(part);
+            }
+        } catch (Exception e) {
+            System.err.println("Could not carve " + name + ": " + e);
+        }
+
+        List<Path> waiting;
+        synchronized (this.index) {
+            waiting = this.duplicates.remove(job.hash);
+            if (done) {
+                this.record(name, new Record(job.size, job.modified, job.hash, carved));
+                this.hashes.put(job.hash, carved);
+            }
+        }
+        if (done) System.out.println("Carved " + name + " -> " + carved);
+        // Look at the duplicates again. They are copied now that the image is carved,
+        // or carved themselves if it failed.
+        this.rechecks.addAll(waiting);
+    }
+
+    // Copies the carved image of a duplicate and records it. Holds the lock of "index".
+    private void copy(Path file, long size, long modified, String hash, String carved) {
+        String name = file.getFileName().toString();
+        String copy = carved(name);
+        try {
+            if (!copy.equals(carved)) {
+                Files.copy(this.output.resolve(carved), this.output.resolve(copy), StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Copied " + name + " -> " + copy + " (same as " + carved + ")");
+            }
+            this.record(name, new Record(size, modified, hash, copy));
+        } catch (IOException e) {
+            System.err.println("Could not copy " + carved + ": " + e);
+        }
+    }
+
+    // Adds a record to the index and appends it to the index file. Holds the lock of "index".
+    private void record(String name, Record record) {
+        this.index.put(name, record);
+        try {
+            this.indexWriter.write(line(name, record));
+            this.indexWriter.flush();
+        } catch (IOException e) {
+            System.err.println("Could not update the index: " + e);
+        }
+    }
+
+    private static String line(String name, Record record) {
+        return name + "\t" + record.size + "\t" + record.modified + "\t" + record.hash + "\t" + record.output + "\n";
+    }
+
+    /*
+     * Returns the name of the carved image of an input, such as "a-jpg-carved.png" for
+     * "a.jpg". The extension is kept, so that "a.png" and "a.jpg" do not share an output.
+     */
+    private static String carved(String name) {
+        return name.replaceFirst("\\.([^.]*)$", "-$1") + "-carved.png";
+    }
+
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        if (name.startsWith(".")) return false;
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    // Returns the SHA-256 of the contents of a file as a hex string.
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read; (read = in.read(buffer)) > 0;) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /*
+     * Watches a directory and carves every image added to it.
+     * Usage: java Watcher <input directory> <output directory> <width>x<height> [backward|forward] [threads]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || !args[2].matches("\\d+x\\d+")) {
+            System.out.println("Usage: java Watcher <input directory> <output directory> <width>x<height> [backward|forward] [threads]");
+            return;
+        }
+        String[] size = args[2].split("x");
+        EnergyType type = args.length > 3 && args[3].equalsIgnoreCase("forward")
+                ? EnergyType.FORWARD
+                : EnergyType.BACKWARD;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        try (Watcher watcher = new Watcher(
+                new File(args[0]),
+                new File(args[1]),
+                Integer.parseInt(size[0]),
+                Integer.parseInt(size[1]),
+                type,
+                Utils.max(threads, 1)
+        )) {
+            watcher.run();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Worker
+ * Alex Eidt
+ * Carves images from a job queue kept in a shared directory. Any number of
+ * worker processes, on one or several hosts sharing the directory, can work
+ * through the same queue.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The queue directory holds one subdirectory for each state of a job:
+ *
+ *   pending    Jobs waiting for a worker.
+ *   running    Jobs claimed by a worker, named "<job>.<worker>". The last modified
+ *              time of a job is its heartbeat. Jobs whose heartbeat stops are put
+ *              back into "pending" under their own name.
+ *   done       Finished jobs.
+ *   failed     Jobs that failed MAX_ATTEMPTS times.
+ *
+ * Every job is a properties file:
+ *
+ *   input      The image to carve.
+ *   size       Target size as <width>x<height>.
+ *   output     Optional. Defaults to "<name of input>-carved.png" beside the input.
+ *   energy     Optional. "backward" (default) or "forward".
+ *   threads    Optional. Number of carving threads, 0 for all CPU cores.
+ *
+ * Jobs move between the directories by atomic renames, so exactly one worker wins
+ * each job. As the worker is part of the name of a running job, a worker that lost
+ * its lease never touches the job once another worker claimed it again. Outputs
+ * are written to a hidden part file and renamed into place once complete, so a
+ * crashed worker never leaves a half written output behind under its final name.
+ * The metrics of each job are written beside its input as "<input>.metrics.json".
+ */
+public class Worker {
+    // Subdirectories of the queue.
+    public static final String PENDING = "pending", RUNNING = "running", DONE = "done", FAILED = "failed";
+    // Extension of job files.
+    public static final String JOB = ".job";
+    // Milliseconds without a heartbeat after which a running job is handed to another worker.
+    public static final long LEASE = 30000;
+    // Milliseconds between heartbeats.
+    public static final long HEARTBEAT = LEASE / 5;
+    // Milliseconds between looking for new jobs while the queue is empty.
+    public static final long POLL = 1000;
+    // Number of times a job is tried before it is moved to "failed".
+    public static final int MAX_ATTEMPTS = 3;
+
+    // The queue directory.
+    private final File queue;
+    // Name of this worker. Unique across processes and hosts and free of dots.
+    private final String id;
+    // Updates the heartbeat of the running job.
+    private final ScheduledExecutorService heartbeat;
+
+    /*
+     * @param queue     The queue directory. Created if it does not exist.
+     * @param id        Name of this worker, unique across processes and hosts.
+     */
+    public Worker(File queue, String id) {
+        this.queue = queue;
+        this.id = id.replaceAll("[^\\w-]", "_");
+        for (String state : new String[] {PENDING, RUNNING, DONE, FAILED}) {
+            new File(queue, state).mkdirs();
+        }
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Karve heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     * Works through the queue.
+     *
+     * @param drain     If true, stop once no jobs are pending or running. Otherwise
+     *                  keep waiting for new jobs.
+     * @return          The number of jobs this worker finished.
+     */
+    public int run(boolean drain) throws InterruptedException {
+        int finished = 0;
+        while (true) {
+            this.reap();
+            File job = this.claim();
+            if (job != null) {
+                if (this.process(job)) finished++;
+                continue;
+            }
+            if (drain && this.list(RUNNING).length == 0) return finished;
+            Thread.sleep(POLL);
+        }
+    }
+
+    /*
+     * Claims the oldest pending job by renaming it into "running" under the name of this
+     * worker. Only one worker can rename a given file, so the worker whose rename
+     * succeeds owns the job.
+     *
+     * @return          The claimed job in "running", or null if no job could be claimed.
+     */
+    private File claim() {
+        File[] pending = this.list(PENDING);
+        Arrays.sort(pending, (a, b) -> a.getName().compareTo(b.getName()));
+        for (File job : pending) {
+            File claimed = new File(new File(this.queue, RUNNING), job.getName() + "." + this.id);
+            if (move(job, claimed)) {
+                // The rename keeps the old modification time, so start the heartbeat fresh.
+                claimed.setLastModified(System.currentTimeMillis());
+                return claimed;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Puts running jobs whose heartbeat stopped back into "pending". If several workers
+     * try this at once, only one rename succeeds.
+     */
+    private void reap() {
+        long now = System.currentTimeMillis();
+        for (File job : this.list(RUNNING)) {
+            long modified = job.lastModified();
+            if (modified != 0 && now - modified > LEASE) {
+                move(job, new File(new File(this.queue, PENDING), name(job)));
+            }
+        }
+    }
+
+    /*
+     * Runs a claimed job and moves it to "done", back to "pending" for another try or to
+     * "failed" once it ran out of attempts.
+     *
+     * @param job       The job in "running".
+     * @return          True if the job finished.
+     */
+    private boolean process(File job) {
+        Properties properties = new Properties();
+        long start = System.nanoTime();
+        ScheduledFuture<?> beat = this.heartbeat.scheduleAtFixedRate(
+                () -> job.setLastModified(System.currentTimeMillis()),
+                HEARTBEAT, HEARTBEAT, TimeUnit.MILLISECONDS
+        );
+        try {
+            try (InputStream in = new FileInputStream(job)) {
+                properties.load(in);
+            }
+            int attempt = Integer.parseInt(properties.getProperty("attempts", "0")) + 1;
+            properties.setProperty("attempts", Integer.toString(attempt));
+            properties.setProperty("worker", this.id);
+            properties.remove("error");
+            this.store(properties, job);
+            this.carve(properties, attempt, start);
+            beat.cancel(false);
+            properties.setProperty("ms", Long.toString((System.nanoTime() - start) / 1000000));
+            this.store(properties, job);
+            return move(job, new File(new File(this.queue, DONE), name(job)));
+        } catch (Exception e) {
+            beat.cancel(false);
+            // The lease was lost and the job handed to another worker, which now owns it.
+            if (!job.exists()) return false;
+            StringWriter error = new StringWriter();
+            e.printStackTrace(new PrintWriter(error));
+            properties.setProperty("error", e.toString());
+            int attempts = Integer.parseInt(properties.getProperty("attempts", "1"));
+            String state = attempts >= MAX_ATTEMPTS ? FAILED : PENDING;
+            try {
+                this.store(properties, job);
+            } catch (IOException ignored) {}
+            move(job, new File(new File(this.queue, state), name(job)));
+            System.err.println(this.id + ": " + name(job) + " attempt " + attempts + " failed\n" + error);
+            return false;
+        }
+    }
+
+    /*
+     * Carves the image of a job and writes the output and the metrics beside the input.
+     *
+     * @param job       The properties of the job.
+     * @param attempt   Number of the attempt, starting at 1.
+     * @param start     Start of the job as given by System.nanoTime().
+     * @throws          Exception if the job is invalid or the image could not be carved.
+     */
+    private void carve(Properties job, int attempt, long start) throws Exception {
+        String inputName = job.getProperty("input");
+        String size = job.getProperty("size", "");
+        if (inputName == null || !size.matches("\\d+x\\d+")) {
+            throw new IllegalArgumentException("Jobs need an input and a size as <width>x<height>");
+        }
+        File input = new File(inputName);
+        String name = input.getName().replaceFirst("\\.[^.]*$", "");
+        File output = new File(job.getProperty("output", new File(input.getAbsoluteFile().getParentFile(), name + "-carved.png").getPath()));
+        String[] dimensions = size.split("x");
+        this.clean(output);
+        this.clean(new File(input.getPath() + ".metrics.json"));
+
+        Karve karve = Karve.image(input)
+                .size(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]))
+                .threads(Integer.parseInt(job.getProperty("threads", "0")));
+        if (job.getProperty("energy", "backward").equalsIgnoreCase("forward")) {
+            karve.energy(EnergyType.FORWARD);
+        }
+        long read = System.nanoTime();
+        Karve.Result result = karve.carve();
+        long carved = System.nanoTime();
+
+        // Write the output under a temporary name first, so it only appears once complete.
+        File part = part(output);
+        try {
+            result.write(part);
+            Files.move(part.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            part.delete();
+        }
+        long written = System.nanoTime();
+
+        String metrics = String.format(
+            "{\"input\": \"%s\", \"output\": \"%s\", \"worker\": \"%s\", \"attempt\": %d, "
+            + "\"width\": %d, \"height\": %d, \"readMs\": %d, \"carveMs\": %d, \"writeMs\": %d, \"totalMs\": %d}%n",
+            escape(input.getPath()), escape(output.getPath()), escape(this.id), attempt,
+            result.width, result.height,
+            (read - start) / 1000000, (carved - read) / 1000000, (written - carved) / 1000000, (written - start) / 1000000
+        );
+        File metricsFile = new File(input.getPath() + ".metrics.json");
+        File metricsPart = part(metricsFile);
+        try {
+            Files.write(metricsPart.toPath(), metrics.getBytes(StandardCharsets.UTF_8));
+            Files.move(metricsPart.toPath(), metricsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            metricsPart.delete();
+        }
+    }
+
+    /*
+     * Writes the properties of a job back to its file, unless the job was handed to
+     * another worker. The file is never created, so a lost job stays lost.
+     */
+    private void store(Properties properties, File job) throws IOException {
+        try (OutputStream out = Files.newOutputStream(job.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            properties.store(out, null);
+        } catch (NoSuchFileException e) {
+            throw new IOException("Lost the lease on " + name(job), e);
+        }
+    }
+
+    // Lists the jobs in one of the subdirectories of the queue.
+    private File[] list(String state) {
+        File[] jobs = new File(this.queue, state).listFiles(
+                (dir, name) -> name.endsWith(JOB) || name.contains(JOB + ".")
+        );
+        return jobs == null ? new File[0] : jobs;
+    }
+
+    // Returns the name of a job without the worker that claimed it.
+    private static String name(File job) {
+        String name = job.getName();
+        return name.endsWith(JOB) ? name : name.substring(0, name.lastIndexOf('.'));
+    }
+
+    /*
+     * Returns the hidden file an output is written to before it is renamed into place.
+     * It keeps the extension of the output, which decides the format it is written in,
+     * and includes the worker name, so that two workers never write the same part file.
+     */
+    private File part(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return new File(file.getAbsoluteFile().getParentFile(), "." + name + "." + this.id + ".part" + extension);
+    }
+
+    // Deletes part files of an output left behind by workers that stopped while writing it.
+    private void clean(File output) {
+        String prefix = "." + output.getName() + ".";
+        File[] parts = output.getAbsoluteFile().getParentFile().listFiles(
+                (dir, name) -> name.startsWith(prefix) && name.contains(".part")
+        );
+        if (parts == null) return;
+        long now = System.currentTimeMillis();
+        for (File part : parts) {
+            if (now - part.lastModified() > LEASE) part.delete();
+        }
+    }
+
+    // Renames a file atomically. Returns false if another worker renamed it first.
+    private static boolean move(File from, File to) {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /*
+     * Adds a job to the queue. The job is written beside "pending" first and renamed
+     * into it, so workers never see a half written job.
+     *
+     * @param queue     The queue directory.
+     * @param job       The properties of the job.
+     * @return          The job file.
+     * @throws          IOException if the job could not be written.
+     */
+    public static File submit(File queue, Properties job) throws IOException {
+        File pending = new File(queue, PENDING);
+        pending.mkdirs();
+        String name = String.format("%013d-%s%s", System.currentTimeMillis(), Long.toHexString(System.nanoTime()), JOB);
+        File temp = new File(queue, "." + name);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            job.store(out, null);
+        }
+        File file = new File(pending, name);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    /*
+     * Runs a worker or submits a job.
+     * Usage: java Worker <queue> [--drain] [--id <name>]
+     *        java Worker submit <queue> <input> <width>x<height> [backward|forward] [output]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 4 && args[0].equals("submit")) {
+            Properties job = new Properties();
+            job.setProperty("input", new File(args[2]).getAbsolutePath());
+            job.setProperty("size", args[3]);
+            if (args.length > 4) job.setProperty("energy", args[4]);
+            if (args.length > 5) job.setProperty("output", new File(args[5]).getAbsolutePath());
+            System.out.println(submit(new File(args[1]), job));
+            return;
+        }
+        if (args.length < 1) {
+            System.out.println("Usage: java Worker <queue> [--drain] [--id <name>]");
+            System.out.println("       java Worker submit <queue> <input> <width>x<height> [backward|forward] [output]");
+            return;
+        }
+        boolean drain = false;
+        // The default name, "pid@host", is unique across processes and hosts.
+        String id = ManagementFactory.getRuntimeMXBean().getName();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--drain")) {
+                drain = true;
+            } else if (args[i].equals("--id") && i + 1 < args.length) {
+                id = args[++i];
+            }
+        }
+        Worker worker = new Worker(new File(args[0]), id);
+        int finished = worker.run(drain);
+        System.out.println(worker.id + ": finished " + finished + " jobs");
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Workspace
+ * Alex Eidt
+ * Keeps the Seam Carvers of several open images. Images that were not used
+ * recently are saved to checkpoints on disk once the Seam Carvers of all open
+ * images need more memory than the budget allows.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+public class Workspace {
+    // Approximate heap used by the vertical and horizontal Seam Carvers for each pixel of
+    // an image: the boxed image and energy lists, energy map, mask, image array and a
+    // full history of removed seams.
+    public static final int BYTES_PER_PIXEL = 140;
+
+    /*
+     * An open image and its vertical and horizontal Seam Carvers.
+     */
+    public static class Entry {
+        // The image file.
+        public final File file;
+        // Downscaling factor of the Seam Carvers. 1 if they are not proxies.
+        public final int proxyScale;
+        // Downscaling factor of the display image.
+        public final int scale;
+        // Dimensions of the image the Seam Carvers were built from.
+        public final int width, height;
+        // Number of pixels of the image the Seam Carvers were built from, and of the
+        // full resolution image if the Seam Carvers are proxies.
+        private final long pixels, fullPixels;
+        // The vertical and horizontal Seam Carvers. Null while evicted.
+        private SeamCarver[] carvers;
+        // The session using the Seam Carvers. Null if they are not in use.
+        private CarverSession session;
+        // Checkpoints of the vertical and horizontal Seam Carvers while evicted.
+        private File[] checkpoints;
+        // Builds the full resolution Seam Carvers for proxies. Null if there are none.
+        private Future<SeamCarver[]> fullLoad;
+
+        private Entry(File file, SeamCarver[] carvers, int proxyScale, int scale) {
+            this.file = file;
+            this.carvers = carvers;
+            this.proxyScale = proxyScale;
+            this.scale = scale;
+            this.width = carvers[0].getWidth();
+            this.height = carvers[0].getHeight();
+            this.pixels = (long) this.width * this.height;
+            this.fullPixels = proxyScale > 1 ? this.pixels * proxyScale * proxyScale : 0;
+        }
+
+        // Returns the builder of the full resolution Seam Carvers, or null.
+        public synchronized Future<SeamCarver[]> getFullLoad() {
+            return this.fullLoad;
+        }
+
+        // Sets the builder of the full resolution Seam Carvers.
+        public synchronized void setFullLoad(Future<SeamCarver[]> fullLoad) {
+            this.fullLoad = fullLoad;
+        }
+
+        // Returns true if the full resolution Seam Carvers are built or still building.
+        // A build that failed or was cancelled has none.
+        public synchronized boolean hasFullLoad() {
+            if (this.fullLoad == null) return false;
+            if (!this.fullLoad.isDone()) return true;
+            try {
+                this.fullLoad.get();
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        // Returns the approximate heap used by the Seam Carvers of the image.
+        private synchronized long bytes() {
+            if (this.carvers == null) return 0;
+            return (this.pixels + (this.hasFullLoad() ? this.fullPixels : 0)) * BYTES_PER_PIXEL;
+        }
+    }
+
+    // Open images, least recently used first.
+    private final LinkedHashMap<File, Entry> entries;
+    // Maximum number of bytes the Seam Carvers of all open images should use.
+    private final long budget;
+    // Directory holding the checkpoints of evicted Seam Carvers.
+    private File directory;
+    // Used to give every checkpoint a unique name.
+    private int checkpoints;
+
+    /*
+     * @param budget    Maximum number of bytes the Seam Carvers of all open images
+     *                  should use. The image in use is never evicted, even if it is
+     *                  larger than the budget.
+     */
+    public Workspace(long budget) {
+        this.budget = budget;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /*
+     * Adds an image to the workspace. An image that is already open is replaced.
+     *
+     * @param file          The image file.
+     * @param carvers       The vertical and horizontal Seam Carvers of the image.
+     * @param proxyScale    Downscaling factor of the Seam Carvers.
+     * @param scale         Downscaling factor of the display image.
+     * @return              The entry of the image.
+     */
+    public synchronized Entry open(File file, SeamCarver[] carvers, int proxyScale, int scale) {
+        Entry entry = new Entry(file.getAbsoluteFile(), carvers, proxyScale, scale);
+        Entry previous = this.entries.put(entry.file, entry);
+        if (previous != null) this.discard(previous);
+        return entry;
+    }
+
+    /*
+     * @param file      The image file.
+     * @return          The entry of the image or null if it is not open.
+     */
+    public synchronized Entry get(File file) {
+        return this.entries.get(file.getAbsoluteFile());
+    }
+
+    // Returns the open image files, least recently used first.
+    public synchronized List<File> files() {
+        return new ArrayList<>(this.entries.keySet());
+    }
+
+    /*
+     * Hands the Seam Carvers of an image to a session. Evicted Seam Carvers are read
+     * back from their checkpoints and a previous session using them is detached first.
+     *
+     * @param entry     The image to use.
+     * @param session   Creates the session for the Seam Carvers.
+     * @return          The session.
+     * @throws          IOException if the checkpoints could not be read.
+     * @throws          InterruptedException if interrupted while detaching the previous session.
+     */
+    public CarverSession attach(Entry entry, Function<SeamCarver[], CarverSession> session)
+            throws IOException, InterruptedException {
+        synchronized (this) {
+            this.entries.get(entry.file);
+        }
+        synchronized (entry) {
+            if (entry.session != null) {
+                entry.session.detach();
+                entry.session = null;
+            }
+            if (entry.carvers == null) {
+                SeamCarverFactory factory = new SeamCarverFactory();
+                entry.carvers = new SeamCarver[] {
+                        factory.load(entry.checkpoints[0]),
+                        factory.load(entry.checkpoints[1])
+                };
+                for (File checkpoint : entry.checkpoints) checkpoint.delete();
+                entry.checkpoints = null;
+            }
+            entry.session = session.apply(entry.carvers);
+            return entry.session;
+        }
+    }
+
+    /*
+     * Takes the Seam Carvers of an image back from its session once every queued
+     * command has run, then evicts the least recently used images until the workspace
+     * fits into the budget.
+     *
+     * @param entry     The image that is no longer used.
+     * @param session   The session that used it. Nothing is detached if the image was
+     *                  handed to a newer session in the meantime.
+     * @throws          InterruptedException if interrupted while waiting for the session.
+     */
+    public void detach(Entry entry, CarverSession session) throws InterruptedException {
+        synchronized (entry) {
+            if (entry.session == session) {
+                entry.session.detach();
+                entry.session = null;
+            }
+        }
+        this.trim();
+    }
+
+    /*
+     * Saves the Seam Carvers of the least recently used images that are not in use to
+     * checkpoints until the workspace fits into the budget. Full resolution Seam Carvers
+     * of proxies are dropped rather than saved, as they hold no edits.
+     */
+    public synchronized void trim() {
+        long total = 0;
+        for (Entry entry : this.entries.values()) total += entry.bytes();
+        for (Iterator<Entry> iterator = this.entries.values().iterator(); iterator.hasNext() && total > this.budget;) {
+            Entry entry = iterator.next();
+            synchronized (entry) {
+                if (entry.session != null || entry.carvers == null) continue;
+                long bytes = entry.bytes();
+                try {
+                    this.evict(entry);
+                    total -= bytes;
+                } catch (IOException e) {
+                    // The image can not be restored without its checkpoints, so it is closed instead.
+                    iterator.remove();
+                    this.discard(entry);
+                    total -= bytes;
+                }
+            }
+        }
+    }
+
+    // Deletes all checkpoints.
+    public synchronized void close() {
+        for (Entry entry : this.entries.values()) this.discard(entry);
+        this.entries.clear();
+        if (this.directory != null) this.directory.delete();
+    }
+
+    // Saves the Seam Carvers of an image to checkpoints and drops them. Holds the lock of "entry".
+    private void evict(Entry entry) throws IOException {
+        if (this.directory == null) {
+            this.directory = Files.createTempDirectory("karve-workspace").toFile();
+        }
+        int id = this.checkpoints++;
+        File[] files = {
+                new File(this.directory, id + "-vertical.ckpt"),
+                new File(this.directory, id + "-horizontal.ckpt")
+        };
+        try {
+            entry.carvers[0].save(files[0]);
+            entry.carvers[1].save(files[1]);
+        } catch (IOException e) {
+            for (File file : files) file.delete();
+            throw e;
+        }
+        entry.carvers = null;
+        entry.checkpoints = files;
+        if (entry.fullLoad != null) {
+            entry.fullLoad.cancel(true);
+            entry.fullLoad = null;
+        }
+    }
+
+    // Drops the Seam Carvers and checkpoints of an image.
+    private void discard(Entry entry) {
+        synchronized (entry) {
+            if (entry.session != null) entry.session.close();
+            if (entry.fullLoad != null) entry.fullLoad.cancel(true);
+            if (entry.checkpoints != null) {
+                for (File file : entry.checkpoints) file.delete();
+            }
+            entry.session = null;
+            entry.carvers = null;
+            entry.checkpoints = null;
+            entry.fullLoad = null;
+        }
+    }
+}